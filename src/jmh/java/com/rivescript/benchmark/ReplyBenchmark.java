@@ -0,0 +1,110 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rivescript.RiveScriptClient;
+
+/**
+ * Reply throughput benchmarks. Run with "gradle jmh".
+ *
+ * The "aiden" brain is the Eliza-style bot that ships in the Aiden/ folder;
+ * the "generated" brain streams in a few thousand synthetic triggers to show
+ * how the reply path scales with the size of a topic. Each brain is run
+ * with each of the trigger matching strategies (see setMatcher()).
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+	@Param({ "aiden", "generated" })
+	public String brain;
+
+	@Param({ "trie", "dfa", "glob", "regex" })
+	public String matcher;
+
+	private RiveScriptClient rs;
+	private String[] messages;
+	private int next = 0;
+
+	@Setup
+	public void setUp () {
+		rs = new RiveScriptClient();
+		rs.getEngine().setMatcher(matcher);
+		if (brain.equals("aiden")) {
+			rs.getEngine().loadDirectory("Aiden");
+			messages = new String[] {
+				"Hello bot",
+				"What is your name?",
+				"my name is Alice",
+				"I am 25 years old",
+				"what color are your eyes",
+				"I think you are a robot",
+				"are you a boy or a girl",
+				"the quick brown fox jumps over the lazy dog",
+			};
+		}
+		else {
+			StringBuilder code = new StringBuilder();
+			for (int i = 0; i < 2000; i++) {
+				code.append("+ tell me about topic number " + i + "\n- Topic " + i + ".\n");
+				code.append("+ what is the status of item " + i + " *\n- Item " + i + ": <star>.\n");
+			}
+			code.append("+ *\n- Fallback.\n");
+			rs.getEngine().stream(code.toString());
+			messages = new String[] {
+				"tell me about topic number 10",
+				"tell me about topic number 1999",
+				"what is the status of item 500 today",
+				"something that matches nothing",
+			};
+		}
+		rs.getEngine().sortReplies();
+	}
+
+	@Benchmark
+	public String reply () {
+		String message = messages[next];
+		next = (next + 1) % messages.length;
+		return rs.reply("benchmark", message);
+	}
+}
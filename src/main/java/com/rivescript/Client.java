@@ -52,6 +52,19 @@ public interface Client {
 	 */
 	void addReply(String text);
 
+	/**
+	 * Add a line to the user's reply history, along with its normalized form
+	 * (formatted the way user messages are, for %Previous matching).
+	 * Clients that don't store the normalized form only keep the reply, and
+	 * the engine formats it again when it needs it.
+	 *
+	 * @param text       The reply.
+	 * @param normalized The normalized reply.
+	 */
+	default void addReply(String text, String normalized) {
+		addReply(text);
+	}
+
 	/**
 	 * Get a specific input value by index.
 	 *
@@ -66,4 +79,13 @@ public interface Client {
 	 */
 	String getReply(int index) throws java.lang.IndexOutOfBoundsException;
 
-}
\ No newline at end of file
+	/**
+	 * Get the normalized form of a specific reply by index, or null if it
+	 * wasn't stored with one.
+	 *
+	 * @param index The index of the reply value to get (1-9).
+	 */
+	default String getNormalizedReply(int index) throws java.lang.IndexOutOfBoundsException {
+		return null;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.regex.Pattern;
+
+/**
+ * A trigger from a topic's sort buffer, compiled once by sortReplies().
+ *
+ * Static triggers (ones without any <bot>, <get>, <input> or <reply> tags)
+ * carry their compiled regular expression. Dynamic triggers depend on the
+ * user's profile, so they carry a TriggerTemplate with the rest of their
+ * regexp worked out, to be filled in at reply time.
+ */
+
+public class CompiledTrigger {
+	private final String pattern;  // The trigger text, as it appears in the sort buffer
+	private final Pattern regexp;  // The compiled regexp (null for dynamic triggers)
+	private final TriggerTemplate template; // The regexp with slots for user data (dynamic triggers only)
+	private final String literal;  // The exact text it matches, for atomic triggers
+	private final WordPattern words; // The trigger broken down into words, if it can be
+
+	/**
+	 * Create a compiled trigger.
+	 *
+	 * @param pattern The trigger text from the sort buffer.
+	 * @param regexp  The compiled regular expression, or null if the trigger is dynamic.
+	 * @param template The trigger's template if it needs user data, or null.
+	 * @param literal The only message the trigger can match, or null if it has
+	 *                anything but plain words in it.
+	 * @param words   The trigger broken down into words, or null if it can't be.
+	 */
+	public CompiledTrigger (String pattern, Pattern regexp, TriggerTemplate template, String literal, WordPattern words) {
+		this.pattern = pattern;
+		this.regexp  = regexp;
+		this.template = template;
+		this.literal = literal;
+		this.words   = words;
+	}
+
+	/**
+	 * Test whether a trigger's text has tags that need the user's profile to
+	 * be filled in before it can be matched.
+	 *
+	 * @param pattern The trigger text.
+	 */
+	public static boolean isDynamic (String pattern) {
+		return pattern.indexOf("<bot") > -1 || pattern.indexOf("<get") > -1
+			|| pattern.indexOf("<input") > -1 || pattern.indexOf("<reply") > -1;
+	}
+
+	/**
+	 * The trigger text, as it appears in the topic's sort buffer.
+	 */
+	public String pattern () {
+		return this.pattern;
+	}
+
+	/**
+	 * The precompiled regular expression. This is null for dynamic triggers,
+	 * and for static triggers whose regexp failed to compile.
+	 */
+	public Pattern regexp () {
+		return this.regexp;
+	}
+
+	/**
+	 * Whether the trigger must be compiled against the user's profile at reply time.
+	 */
+	public boolean isDynamic () {
+		return this.template != null;
+	}
+
+	/**
+	 * The template to fill in with the user's data, for dynamic triggers.
+	 */
+	public TriggerTemplate template () {
+		return this.template;
+	}
+
+	/**
+	 * For atomic triggers (plain words, no wildcards, optionals, arrays or tags),
+	 * the exact message text the trigger matches. Null for all other triggers.
+	 */
+	public String literal () {
+		return this.literal;
+	}
+
+	/**
+	 * The trigger broken down into words for the word matchers, or null if
+	 * only its regexp can match it faithfully.
+	 */
+	public WordPattern words () {
+		return this.words;
+	}
+
+	/**
+	 * The fewest words a canonical message needs to match the trigger. This is
+	 * 0 when the trigger can't be broken down into words.
+	 */
+	public int minWords () {
+		return (this.words == null) ? 0 : this.words.minWords();
+	}
+
+	/**
+	 * The most words a canonical message can have and still match the trigger.
+	 * This is Integer.MAX_VALUE when there's no limit, or the trigger can't be
+	 * broken down into words.
+	 */
+	public int maxWords () {
+		return (this.words == null) ? Integer.MAX_VALUE : this.words.maxWords();
+	}
+}
@@ -0,0 +1,231 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A condition of a trigger ("* left op right => reply"), parsed once when it
+ * is loaded.<p>
+ *
+ * Both sides are reply templates that get evaluated for each reply; the
+ * operator decides how the results are compared. "eq" and "ne" compare text,
+ * "&lt;", "&lt;=", "&gt;" and "&gt;=" compare numbers, and "==", "!=" and "&lt;&gt;"
+ * compare text and then numbers. An empty side counts as "undefined".
+ */
+
+public class Condition {
+	// Operators.
+	public static final int EQ         = 0; // eq
+	public static final int NE         = 1; // ne
+	public static final int EQUALS     = 2; // ==
+	public static final int NOT_EQUALS = 3; // != and <>
+	public static final int LT         = 4; // <
+	public static final int LE         = 5; // <=
+	public static final int GT         = 6; // >
+	public static final int GE         = 7; // >=
+
+	private static final Pattern reCond = Pattern.compile("^(.+?)\\s+(==|eq|\\!=|ne|<>|<|<=|>|>=)\\s+(.+?)$");
+
+	private final String text;  // The whole condition line
+	private final int operator;
+	private final ReplyTemplate left;
+	private final ReplyTemplate right;
+	private final String reply;
+
+	// The sides as numbers, when they are literal numbers.
+	private final Integer leftNumber;
+	private final Integer rightNumber;
+
+	private Condition (String text, int operator, String left, String right, String reply) {
+		this.text        = text;
+		this.operator    = operator;
+		this.left        = ReplyTemplate.parse(left);
+		this.right       = ReplyTemplate.parse(right);
+		this.reply       = reply;
+		this.leftNumber  = number(this.left.literal());
+		this.rightNumber = number(this.right.literal());
+	}
+
+	/**
+	 * Parse a condition line.
+	 *
+	 * @param text The condition, like "&lt;get name&gt; == undefined =&gt; What's your name?"
+	 * @return The condition, or null if it isn't one.
+	 */
+	public static Condition parse (String text) {
+		// Separate the condition from the potential reply.
+		String[] halves = text.split("\\s*=>\\s*");
+		if (halves.length < 2) {
+			return null;
+		}
+		String condition = halves[0].trim();
+		String reply     = halves[1].trim();
+
+		// Split up the condition.
+		Matcher mCond = reCond.matcher(condition);
+		if (!mCond.find()) {
+			return null;
+		}
+		String eq = mCond.group(2);
+		int operator;
+		if (eq.equals("eq")) {
+			operator = EQ;
+		}
+		else if (eq.equals("ne")) {
+			operator = NE;
+		}
+		else if (eq.equals("==")) {
+			operator = EQUALS;
+		}
+		else if (eq.equals("!=") || eq.equals("<>")) {
+			operator = NOT_EQUALS;
+		}
+		else if (eq.equals("<")) {
+			operator = LT;
+		}
+		else if (eq.equals("<=")) {
+			operator = LE;
+		}
+		else if (eq.equals(">")) {
+			operator = GT;
+		}
+		else {
+			operator = GE;
+		}
+
+		return new Condition(text, operator, mCond.group(1).trim(), mCond.group(3).trim(), reply);
+	}
+
+	/**
+	 * The whole condition line.
+	 */
+	public String text () {
+		return this.text;
+	}
+
+	/**
+	 * The operator (EQ, NE, EQUALS, NOT_EQUALS, LT, LE, GT or GE).
+	 */
+	public int operator () {
+		return this.operator;
+	}
+
+	/**
+	 * The left side of the comparison.
+	 */
+	public ReplyTemplate left () {
+		return this.left;
+	}
+
+	/**
+	 * The right side of the comparison.
+	 */
+	public ReplyTemplate right () {
+		return this.right;
+	}
+
+	/**
+	 * The reply to give if the condition is true.
+	 */
+	public String reply () {
+		return this.reply;
+	}
+
+	/**
+	 * Compare the evaluated sides of the condition.
+	 *
+	 * @param left  The evaluated left side.
+	 * @param right The evaluated right side.
+	 * @return Whether the condition is true.
+	 */
+	public boolean test (String left, String right) {
+		// Defaults
+		if (left.length() == 0) {
+			left = "undefined";
+		}
+		if (right.length() == 0) {
+			right = "undefined";
+		}
+
+		// String equality comparing.
+		switch (this.operator) {
+			case EQ:
+				return left.equals(right);
+			case NE:
+				return !left.equals(right);
+			case EQUALS:
+				if (left.equals(right)) {
+					return true;
+				}
+				break;
+			case NOT_EQUALS:
+				if (!left.equals(right)) {
+					return true;
+				}
+				break;
+		}
+
+		// Numeric comparing.
+		Integer lt = (this.left.literal() != null) ? this.leftNumber : number(left);
+		Integer rt = (this.right.literal() != null) ? this.rightNumber : number(right);
+		if (lt == null || rt == null) {
+			return false;
+		}
+
+		switch (this.operator) {
+			case EQUALS:
+				return lt.intValue() == rt.intValue();
+			case NOT_EQUALS:
+				return lt.intValue() != rt.intValue();
+			case LT:
+				return lt.intValue() < rt.intValue();
+			case LE:
+				return lt.intValue() <= rt.intValue();
+			case GT:
+				return lt.intValue() > rt.intValue();
+			case GE:
+				return lt.intValue() >= rt.intValue();
+		}
+		return false;
+	}
+
+	/**
+	 * Turn a side of a condition into a number.
+	 *
+	 * @return The number, or null if it isn't one.
+	 */
+	private static Integer number (String side) {
+		if (side == null) {
+			return null;
+		}
+		try {
+			return Integer.valueOf(side);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
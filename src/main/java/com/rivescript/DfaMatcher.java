@@ -0,0 +1,386 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+
+/**
+ * A matching strategy that compiles all of a topic's triggers into a single
+ * automaton.
+ *
+ * Each trigger that can be broken down into words (see WordPattern) becomes a
+ * fragment of one nondeterministic automaton over the alphabet of canonical
+ * messages: a-z, 0-9 and the space. The deterministic states are built lazily
+ * the first time a message needs them and kept for the next one, so after a
+ * short warm-up a message costs one table lookup per character.<p>
+ *
+ * The automaton only tells which triggers accept the message; the one with
+ * the best sort index wins, and its precompiled regexp is run once to fill in
+ * the stars. Triggers outside the word model, and messages that aren't
+ * canonical, fall back to a RegexMatcher.
+ */
+
+public class DfaMatcher implements TriggerMatcher {
+	// The alphabet: a-z, then 0-9, then the space.
+	private static final int SYMBOLS = 37;
+	private static final int SPACE   = 36;
+
+	// Character classes as bit masks over the alphabet.
+	private static final long LETTERS = (1L << 26) - 1;
+	private static final long DIGITS  = ((1L << 10) - 1) << 26;
+	private static final long ALNUM   = LETTERS | DIGITS;
+
+	// Stop caching deterministic states past this many.
+	private static final int MAX_STATES = 10000;
+
+	private final CompiledTrigger[] triggers;
+	private final RegexMatcher fallback; // Static triggers that aren't in the automaton
+	private final RegexMatcher regexp;   // All static triggers, for odd messages
+
+	// The nondeterministic automaton.
+	private NState[] nfa;
+	private int size = 0;
+
+	// The deterministic states built so far.
+	private final HashMap<DState, DState> cache = new HashMap<DState, DState>();
+	private final DState start;
+	private int[] marks; // Scratch space for closures
+	private int mark = 0;
+
+	/**
+	 * A state of the nondeterministic automaton.
+	 */
+	private static class NState {
+		long[] masks = new long [0]; // Symbols for each transition
+		int[] targets = new int [0]; // Target of each transition
+		int[] eps = new int [0];     // Empty transitions
+		int accept = Integer.MAX_VALUE; // Sort index of the trigger ending here
+	}
+
+	/**
+	 * A state of the deterministic automaton: a set of nondeterministic states.
+	 */
+	private static class DState {
+		final int[] set;
+		final int accept; // Best sort index accepted here
+		final DState[] next = new DState [ SYMBOLS ];
+
+		DState (int[] set, int accept) {
+			this.set    = set;
+			this.accept = accept;
+		}
+
+		public boolean equals (Object other) {
+			return other instanceof DState && Arrays.equals(set, ((DState) other).set);
+		}
+
+		public int hashCode () {
+			return Arrays.hashCode(set);
+		}
+	}
+
+	/**
+	 * Build the automaton for a compiled sort buffer.
+	 *
+	 * @param triggers The topic's compiled sort buffer.
+	 */
+	public DfaMatcher (CompiledTrigger[] triggers) {
+		this.triggers = triggers;
+		this.nfa = new NState [64];
+
+		// Messages are padded with a space on both ends, and every word in a
+		// trigger eats the space that follows it.
+		int init  = state();
+		int begin = state();
+		edge(init, 1L << SPACE, begin);
+
+		CompiledTrigger[] rest = new CompiledTrigger [ triggers.length ];
+		for (int i = 0; i < triggers.length; i++) {
+			WordPattern pattern = triggers[i].words();
+			if (pattern == null) {
+				rest[i] = triggers[i];
+				continue;
+			}
+			int from = state();
+			epsilon(begin, from);
+			WordPattern.Item[] items = pattern.items();
+			for (int j = 0; j < items.length; j++) {
+				from = item(from, items[j]);
+			}
+			nfa[from].accept = Math.min(nfa[from].accept, i);
+		}
+		this.fallback = new RegexMatcher(rest);
+		this.regexp   = new RegexMatcher(triggers);
+
+		this.marks = new int [ size ];
+		this.start = intern(closure(new int[] { init }, 1));
+	}
+
+	public TriggerMatch match (MessageTokens tokens) {
+		if (!tokens.canonical()) {
+			// Not a canonical message, leave it to the regexps.
+			return regexp.match(tokens);
+		}
+
+		String message = tokens.message();
+		int n = message.length();
+		DState state = step(start, SPACE);
+		for (int i = 0; i < n; i++) {
+			state = step(state, symbol(message.charAt(i)));
+		}
+		state = step(state, SPACE);
+
+		// A trigger the automaton doesn't know about may still sort ahead of its match.
+		TriggerMatch other = fallback.match(tokens, state.accept);
+		if (other != null) {
+			return other;
+		}
+		if (state.accept == Integer.MAX_VALUE) {
+			return null;
+		}
+
+		// Let the winner's regexp fill in the stars.
+		Matcher m = triggers[state.accept].regexp().matcher(message);
+		if (m.matches()) {
+			return new TriggerMatch(state.accept, m);
+		}
+		return regexp.match(tokens);
+	}
+
+	/**
+	 * Follow a transition of the deterministic automaton, building the target
+	 * state if this is the first time it's needed.
+	 */
+	private DState step (DState state, int symbol) {
+		DState next = state.next[symbol];
+		if (next != null) {
+			return next;
+		}
+
+		synchronized (this) {
+			if (state.next[symbol] != null) {
+				return state.next[symbol];
+			}
+
+			// Everything reachable from the set on this symbol.
+			int[] moved = new int [ state.set.length ];
+			int count = 0;
+			long bit = 1L << symbol;
+			mark++;
+			for (int s : state.set) {
+				NState ns = nfa[s];
+				for (int t = 0; t < ns.masks.length; t++) {
+					int target = ns.targets[t];
+					if ((ns.masks[t] & bit) != 0 && marks[target] != mark) {
+						marks[target] = mark;
+						if (count == moved.length) {
+							moved = Arrays.copyOf(moved, count * 2);
+						}
+						moved[count++] = target;
+					}
+				}
+			}
+
+			next = intern(closure(moved, count));
+			if (cache.get(next) == next) {
+				state.next[symbol] = next;
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * Look up a deterministic state by its set, adding it to the cache if
+	 * there's still room.
+	 */
+	private DState intern (DState state) {
+		DState known = cache.get(state);
+		if (known != null) {
+			return known;
+		}
+		if (cache.size() < MAX_STATES) {
+			cache.put(state, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Build the deterministic state for a set of states and everything they
+	 * reach through empty transitions.
+	 *
+	 * @param states The states; the array may be reused.
+	 * @param count  The number of states in the array.
+	 */
+	private DState closure (int[] states, int count) {
+		int[] stack = Arrays.copyOf(states, Math.max(count, 1));
+		int[] set = new int [ Math.max(count, 1) ];
+		int depth = count, found = 0;
+		int accept = Integer.MAX_VALUE;
+
+		mark++;
+		for (int i = 0; i < count; i++) {
+			marks[ states[i] ] = mark;
+		}
+		while (depth > 0) {
+			int s = stack[--depth];
+			if (found == set.length) {
+				set = Arrays.copyOf(set, found * 2);
+			}
+			set[found++] = s;
+			accept = Math.min(accept, nfa[s].accept);
+			for (int e : nfa[s].eps) {
+				if (marks[e] != mark) {
+					marks[e] = mark;
+					if (depth == stack.length) {
+						stack = Arrays.copyOf(stack, depth * 2);
+					}
+					stack[depth++] = e;
+				}
+			}
+		}
+
+		set = Arrays.copyOf(set, found);
+		Arrays.sort(set);
+		return new DState(set, accept);
+	}
+
+	/**
+	 * Add the fragment for one item of a word pattern.
+	 *
+	 * @param from The state the item starts from.
+	 * @return The state after the item and its trailing space.
+	 */
+	private int item (int from, WordPattern.Item item) {
+		switch (item.type) {
+			case WordPattern.WORD:
+				return word(from, item.word);
+			case WordPattern.STAR:
+				return words(from);
+			case WordPattern.POUND:
+				return token(from, DIGITS);
+			case WordPattern.UNDER:
+				return token(from, LETTERS);
+			default:
+				// Alternatives and optionals.
+				int to = state();
+				for (String[] choice : item.choices) {
+					int end;
+					if (choice == WordPattern.ANY) {
+						end = words(from);
+					}
+					else {
+						end = from;
+						for (String word : choice) {
+							end = word(end, word);
+						}
+					}
+					epsilon(end, to);
+				}
+				if (item.type == WordPattern.OPTIONAL) {
+					epsilon(from, to);
+				}
+				return to;
+		}
+	}
+
+	/**
+	 * A plain word followed by a space.
+	 */
+	private int word (int from, String word) {
+		for (int i = 0; i < word.length(); i++) {
+			int next = state();
+			edge(from, 1L << symbol(word.charAt(i)), next);
+			from = next;
+		}
+		int next = state();
+		edge(from, 1L << SPACE, next);
+		return next;
+	}
+
+	/**
+	 * One word made of a class of characters, followed by a space.
+	 */
+	private int token (int from, long mask) {
+		int inside = state();
+		int next   = state();
+		edge(from, mask, inside);
+		edge(inside, mask, inside);
+		edge(inside, 1L << SPACE, next);
+		return next;
+	}
+
+	/**
+	 * One or more words, each followed by a space.
+	 */
+	private int words (int from) {
+		int loop = state();
+		epsilon(from, loop);
+		int end = token(loop, ALNUM);
+		epsilon(end, loop);
+		return end;
+	}
+
+	/**
+	 * Map a character to its symbol, or -1 if it isn't in the alphabet.
+	 */
+	private static int symbol (char c) {
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a';
+		}
+		else if (c >= '0' && c <= '9') {
+			return 26 + (c - '0');
+		}
+		else if (c == ' ') {
+			return SPACE;
+		}
+		return -1;
+	}
+
+	/*-- Automaton building --*/
+
+	private int state () {
+		if (size == nfa.length) {
+			nfa = Arrays.copyOf(nfa, size * 2);
+		}
+		nfa[size] = new NState();
+		return size++;
+	}
+
+	private void edge (int from, long mask, int to) {
+		NState s = nfa[from];
+		s.masks   = Arrays.copyOf(s.masks, s.masks.length + 1);
+		s.targets = Arrays.copyOf(s.targets, s.targets.length + 1);
+		s.masks[ s.masks.length - 1 ]     = mask;
+		s.targets[ s.targets.length - 1 ] = to;
+	}
+
+	private void epsilon (int from, int to) {
+		NState s = nfa[from];
+		s.eps = Arrays.copyOf(s.eps, s.eps.length + 1);
+		s.eps[ s.eps.length - 1 ] = to;
+	}
+}
@@ -0,0 +1,270 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+/**
+ * A matching strategy that tests triggers one at a time, like RegexMatcher,
+ * but without regular expressions.
+ *
+ * Each trigger that can be broken down into words (see WordPattern) is
+ * matched against the words of the message directly, comparing their
+ * Vocabulary IDs. A wildcard only has to
+ * try more than one length when the next item in the trigger isn't a plain
+ * word; otherwise it jumps straight to the places where that word appears.
+ * Stars are recorded as character offsets into the message, so no strings
+ * are made until the engine asks for them. Triggers that can't match as many words as
+ * the message has are skipped without looking at them.<p>
+ *
+ * Triggers outside the word model, and messages that aren't canonical, fall
+ * back to a RegexMatcher.
+ */
+
+public class GlobMatcher implements TriggerMatcher {
+	// What the match last went past (see glob()).
+	private static final int AFTER_ITEM     = 0; // A word, wildcard or alternatives, or nothing yet
+	private static final int AFTER_OPTIONAL = 1; // An optional that matched some words
+	private static final int AFTER_SKIP     = 2; // Optionals that matched nothing, after a word
+
+	private final WordPattern.Item[][] patterns; // Items of each trigger (null if not in the word model)
+	private final String[] literals;             // Text of each atomic trigger
+	private final int[] minWords;                // Fewest words each trigger can match
+	private final int[] maxWords;                // Most words each trigger can match
+	private final RegexMatcher fallback;         // Static triggers that aren't word patterns
+	private final RegexMatcher regexp;           // All static triggers, for odd messages
+	private final int maxStars;                  // Most stars captured by any trigger
+	private final Vocabulary vocabulary;         // IDs of the trigger words
+
+	/**
+	 * Build the matcher for a compiled sort buffer.
+	 *
+	 * @param triggers   The topic's compiled sort buffer.
+	 * @param vocabulary The vocabulary the word patterns were parsed with.
+	 */
+	public GlobMatcher (CompiledTrigger[] triggers, Vocabulary vocabulary) {
+		this.vocabulary = vocabulary;
+		CompiledTrigger[] rest = new CompiledTrigger [ triggers.length ];
+		patterns = new WordPattern.Item [ triggers.length ][];
+		literals = new String [ triggers.length ];
+		minWords = new int [ triggers.length ];
+		maxWords = new int [ triggers.length ];
+		int maxStars = 0;
+		for (int i = 0; i < triggers.length; i++) {
+			WordPattern pattern = triggers[i].words();
+			if (pattern == null) {
+				rest[i] = triggers[i];
+				continue;
+			}
+			patterns[i] = pattern.items();
+			literals[i] = triggers[i].literal();
+			minWords[i] = triggers[i].minWords();
+			maxWords[i] = triggers[i].maxWords();
+			maxStars = Math.max(maxStars, pattern.starCount());
+		}
+		this.maxStars = maxStars;
+		this.fallback = new RegexMatcher(rest);
+		this.regexp   = new RegexMatcher(triggers);
+	}
+
+	/**
+	 * State for matching one message.
+	 */
+	private static class Search {
+		MessageTokens tokens; // The message
+		String[] words;       // Words of the message
+		int[] ids;            // Their vocabulary IDs
+		int[] stars;          // Start and end offset of each star so far
+	}
+
+	public TriggerMatch match (MessageTokens tokens) {
+		String message = tokens.message();
+		String[] words = tokens.words();
+		if (words == null) {
+			// Not a canonical message, leave it to the regexps.
+			return regexp.match(tokens);
+		}
+		Search search = new Search();
+		search.tokens = tokens;
+		search.words = words;
+		search.ids = tokens.ids(vocabulary);
+		search.stars = new int [ maxStars * 2 ];
+		for (int i = 0; i < patterns.length; i++) {
+			if (patterns[i] == null || words.length < minWords[i] || words.length > maxWords[i]) {
+				continue;
+			}
+			if (literals[i] != null ? !literals[i].equals(message) : !glob(search, patterns[i], 0, 0, 0, AFTER_ITEM)) {
+				continue;
+			}
+
+			// A trigger outside the word model may still sort ahead of this one.
+			TriggerMatch other = fallback.match(tokens, i);
+			if (other != null) {
+				return other;
+			}
+
+			int count = 0;
+			for (WordPattern.Item item : patterns[i]) {
+				if (item.capture) {
+					count++;
+				}
+			}
+			int[] spans = new int [ count * 2 ];
+			System.arraycopy(search.stars, 0, spans, 0, spans.length);
+			return new TriggerMatch(i, message, spans);
+		}
+
+		return fallback.match(tokens);
+	}
+
+	/**
+	 * Match the items of a trigger from a position in the message.
+	 *
+	 * Choices are tried in the same order as the trigger's regexp would try
+	 * them (alternatives left to right, wildcards shortest first), so the first
+	 * way that matches has the same stars the regexp finds.<p>
+	 *
+	 * An optional takes the spaces around it into its regexp, and when it
+	 * matches nothing it leaves the space before the next word alone. So a
+	 * wildcard right after optionals that were skipped starts at that space,
+	 * unless there was no word before them or an optional before them took it
+	 * (see skip()).
+	 *
+	 * @param search The search state.
+	 * @param items  The trigger's items.
+	 * @param item   The index of the next item.
+	 * @param pos    The index of the next word.
+	 * @param star   The number of stars captured so far.
+	 * @param after  What the match last went past (AFTER_ITEM etc.)
+	 */
+	private boolean glob (Search search, WordPattern.Item[] items, int item, int pos, int star, int after) {
+		String[] words = search.words;
+		int[] ids = search.ids;
+		if (item == items.length) {
+			return pos == words.length;
+		}
+
+		WordPattern.Item it = items[item];
+		switch (it.type) {
+			case WordPattern.WORD:
+				return pos < words.length && it.id == ids[pos]
+					&& glob(search, items, item + 1, pos + 1, star, AFTER_ITEM);
+			case WordPattern.POUND:
+				return pos < words.length && WordPattern.isNumber(words[pos])
+					&& capture(search, items, item, pos, pos + 1, star, false);
+			case WordPattern.UNDER:
+				return pos < words.length && WordPattern.isLetters(words[pos])
+					&& capture(search, items, item, pos, pos + 1, star, false);
+			case WordPattern.STAR:
+				return span(search, items, item, pos, star, true, after == AFTER_SKIP);
+			case WordPattern.ALTERNATIVES:
+				for (int[] choice : it.ids) {
+					if (!WordPattern.matchesAt(choice, ids, pos)) {
+						continue;
+					}
+					if (it.capture ? capture(search, items, item, pos, pos + choice.length, star, false)
+							: glob(search, items, item + 1, pos + choice.length, star, AFTER_ITEM)) {
+						return true;
+					}
+				}
+				return false;
+			default:
+				// Optionals: each choice, then nothing.
+				for (int[] choice : it.ids) {
+					if (choice == WordPattern.ANY_IDS) {
+						if (span(search, items, item, pos, star, false, false)) {
+							return true;
+						}
+					}
+					else if (WordPattern.matchesAt(choice, ids, pos)
+							&& glob(search, items, item + 1, pos + choice.length, star, AFTER_OPTIONAL)) {
+						return true;
+					}
+				}
+				return glob(search, items, item + 1, pos, star, skip(it, pos, after));
+		}
+	}
+
+	/**
+	 * Work out what the match last went past once it skips an optional.
+	 *
+	 * A skipped optional leaves the space before the next word alone, except
+	 * one with a * choice: that can match just the space instead.
+	 *
+	 * @param item  The optional.
+	 * @param pos   The index of the next word.
+	 * @param after What the match went past before the optional.
+	 */
+	private static int skip (WordPattern.Item item, int pos, int after) {
+		if (pos == 0) {
+			return after;
+		}
+		if (item.any) {
+			return AFTER_OPTIONAL;
+		}
+		return (after == AFTER_ITEM) ? AFTER_SKIP : after;
+	}
+
+	/**
+	 * Match a run of one or more words, shortest first.
+	 *
+	 * @param capture Whether the run is a star (otherwise it's an optional).
+	 * @param space   Whether a star starts at the space before its first word.
+	 */
+	private boolean span (Search search, WordPattern.Item[] items, int item, int pos, int star, boolean capture, boolean space) {
+		String[] words = search.words;
+
+		// At the end of the trigger, the run has to take all the rest.
+		if (item + 1 == items.length) {
+			return pos < words.length
+				&& (capture ? capture(search, items, item, pos, words.length, star, space)
+					: glob(search, items, item + 1, words.length, star, AFTER_OPTIONAL));
+		}
+
+		// Followed by a plain word, the run can only end right before it.
+		WordPattern.Item next = items[item + 1];
+		for (int end = pos + 1; end <= words.length; end++) {
+			if (next.type == WordPattern.WORD && (end == words.length || next.id != search.ids[end])) {
+				continue;
+			}
+			if (capture ? capture(search, items, item, pos, end, star, space)
+					: glob(search, items, item + 1, end, star, AFTER_OPTIONAL)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Record a star and match the rest of the trigger.
+	 *
+	 * @param start The first word of the star.
+	 * @param end   The word after its last.
+	 * @param space Whether it starts at the space before its first word.
+	 */
+	private boolean capture (Search search, WordPattern.Item[] items, int item, int start, int end, int star, boolean space) {
+		search.stars[star * 2]     = search.tokens.start(start) - (space ? 1 : 0);
+		search.stars[star * 2 + 1] = search.tokens.end(end - 1);
+		return glob(search, items, item + 1, end, star + 1, AFTER_ITEM);
+	}
+}
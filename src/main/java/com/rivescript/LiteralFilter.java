@@ -0,0 +1,230 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * An Aho-Corasick automaton over the words that triggers require.
+ *
+ * Most wildcard triggers still contain a plain word or two (the "weather" in
+ * "* weather in *") that has to show up somewhere in a message before the
+ * trigger's regexp has any chance to match. One pass over the message with
+ * this automaton finds every such word that is present, so a matcher can skip
+ * the regexps of triggers that are missing one.
+ */
+
+public class LiteralFilter {
+	// The alphabet: a-z, then 0-9. Anything else sends us back to the root.
+	private static final int SYMBOLS = 36;
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>(); // Word -> ID
+	private int[][] delta;   // Transitions of each node, following failure links
+	private int[][] outputs; // IDs of the words that end at each node
+
+	/**
+	 * Build the automaton for a set of words.
+	 *
+	 * @param words The words to look for. Duplicates share an ID.
+	 */
+	public LiteralFilter (Vector<String> words) {
+		Vector<int[]> goTo = new Vector<int[]>();
+		Vector<int[]> out = new Vector<int[]>();
+		goTo.add(node());
+		out.add(new int [0]);
+
+		// Build the trie of words.
+		for (String word : words) {
+			if (ids.containsKey(word)) {
+				continue;
+			}
+			int id = ids.size();
+			ids.put(word, id);
+
+			int node = 0;
+			for (int i = 0; i < word.length(); i++) {
+				int symbol = symbol(word.charAt(i));
+				if (goTo.get(node)[symbol] < 0) {
+					goTo.get(node)[symbol] = goTo.size();
+					goTo.add(node());
+					out.add(new int [0]);
+				}
+				node = goTo.get(node)[symbol];
+			}
+			out.set(node, append(out.get(node), id));
+		}
+
+		// Fill in the failure links breadth first, turning the trie into a
+		// complete transition table.
+		delta   = goTo.toArray(new int [0][]);
+		outputs = out.toArray(new int [0][]);
+		int[] fail  = new int [ delta.length ];
+		int[] queue = new int [ delta.length ];
+		int head = 0, tail = 0;
+		for (int s = 0; s < SYMBOLS; s++) {
+			if (delta[0][s] < 0) {
+				delta[0][s] = 0;
+			}
+			else {
+				fail[ delta[0][s] ] = 0;
+				queue[tail++] = delta[0][s];
+			}
+		}
+		while (head < tail) {
+			int node = queue[head++];
+			for (int s = 0; s < SYMBOLS; s++) {
+				int child = delta[node][s];
+				if (child < 0) {
+					delta[node][s] = delta[ fail[node] ][s];
+				}
+				else {
+					fail[child] = delta[ fail[node] ][s];
+					int[] inherited = outputs[ fail[child] ];
+					for (int id : inherited) {
+						outputs[child] = append(outputs[child], id);
+					}
+					queue[tail++] = child;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the ID of a word, or -1 if the automaton doesn't know it.
+	 *
+	 * @param word The word.
+	 */
+	public int id (String word) {
+		Integer id = ids.get(word);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * Test whether the automaton has any words at all.
+	 */
+	public boolean isEmpty () {
+		return ids.isEmpty();
+	}
+
+	/**
+	 * Find the words that appear in a message.
+	 *
+	 * @param message The formatted message.
+	 * @return The IDs of the words found.
+	 */
+	public BitSet scan (CharSequence message) {
+		BitSet found = new BitSet(ids.size());
+		int node = 0;
+		for (int i = 0; i < message.length(); i++) {
+			int symbol = symbol(message.charAt(i));
+			if (symbol < 0) {
+				node = 0;
+				continue;
+			}
+			node = delta[node][symbol];
+			for (int id : outputs[node]) {
+				found.set(id);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Get the words a trigger can't match without. These are the plain words
+	 * outside of any optionals, alternatives or tags, which end up as literal
+	 * text in the trigger's regexp.
+	 *
+	 * @param trigger The trigger text.
+	 */
+	public static Vector<String> required (String trigger) {
+		Vector<String> words = new Vector<String>();
+		int depth = 0;
+		int start = 0;
+		int n = trigger.length();
+		for (int i = 0; i <= n; i++) {
+			char c = (i < n) ? trigger.charAt(i) : ' ';
+			if (c == '[' || c == '(' || c == '{' || c == '<') {
+				depth++;
+			}
+			else if (c == ']' || c == ')' || c == '}' || c == '>') {
+				depth--;
+			}
+			else if (c == '|' && depth == 0) {
+				// A bare pipe splits the whole regexp in two; nothing is required.
+				words.clear();
+				return words;
+			}
+
+			if (c == ' ') {
+				if (depth == 0 && i > start && isWord(trigger, start, i)) {
+					words.add(trigger.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Test whether a piece of a trigger is made of [a-z0-9] only, and wasn't
+	 * part of a group.
+	 */
+	private static boolean isWord (String trigger, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (symbol(trigger.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Map a character to its symbol, or -1 if it isn't in the alphabet.
+	 */
+	private static int symbol (char c) {
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a';
+		}
+		else if (c >= '0' && c <= '9') {
+			return 26 + (c - '0');
+		}
+		return -1;
+	}
+
+	private static int[] node () {
+		int[] node = new int [ SYMBOLS ];
+		Arrays.fill(node, -1);
+		return node;
+	}
+
+	private static int[] append (int[] list, int value) {
+		int[] result = Arrays.copyOf(list, list.length + 1);
+		result[list.length] = value;
+		return result;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+package com.rivescript;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache from strings to values, which counts
+ * its hits and misses. It's safe to share between threads.
+ *
+ * @param <V> The type of the cached values.
+ */
+
+public class LruCache<V> {
+	private final int size; // Most entries to keep
+	private final LinkedHashMap<String, V> entries;
+	private long hits   = 0;
+	private long misses = 0;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param size The most entries to keep.
+	 */
+	public LruCache (int size) {
+		this.size = size;
+		this.entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+			protected boolean removeEldestEntry (Map.Entry<String, V> eldest) {
+				return size() > LruCache.this.size;
+			}
+		};
+	}
+
+	/**
+	 * Look up a value, counting the hit or miss.
+	 *
+	 * @param key The cache key.
+	 * @return The value, or null if it isn't cached.
+	 */
+	public synchronized V get (String key) {
+		V value = entries.get(key);
+		if (value == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Store a value.
+	 *
+	 * @param key   The cache key.
+	 * @param value The value.
+	 */
+	public synchronized void put (String key, V value) {
+		entries.put(key, value);
+	}
+
+	/**
+	 * Forget all cached values. The hit and miss counters are kept.
+	 */
+	public synchronized void clear () {
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of entries in the cache.
+	 */
+	public synchronized int size () {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of lookups that found a value.
+	 */
+	public synchronized long hits () {
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups that didn't find a value.
+	 */
+	public synchronized long misses () {
+		return misses;
+	}
+
+	/**
+	 * Get the share of lookups that found a value, from 0 to 1.
+	 */
+	public synchronized double hitRate () {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+/**
+ * A bounded, least recently used cache of trigger matches.
+ *
+ * Chat traffic tends to repeat itself ("hi", "help", "menu"), and for a given
+ * topic and message the trigger search always ends the same way, as long as
+ * the user data that the topic's triggers look at hasn't changed. The engine
+ * keys this cache on all three, so a hit can skip the search entirely.
+ */
+
+public class MatchCache extends LruCache<MatchCache.Result> {
+	/**
+	 * The outcome of a trigger search.
+	 */
+	public static class Result {
+		/**
+		 * The result of a search that didn't match anything.
+		 */
+		public static final Result NONE = new Result(null, null, new String [0]);
+
+		private final String trigger;  // The matched trigger text (null for no match)
+		private final Trigger matched; // The matched trigger's data
+		private final String[] stars;  // The captured stars
+
+		public Result (String trigger, Trigger matched, String[] stars) {
+			this.trigger = trigger;
+			this.matched = matched;
+			this.stars   = stars;
+		}
+
+		/**
+		 * The text of the matched trigger, or null if nothing matched.
+		 */
+		public String trigger () {
+			return this.trigger;
+		}
+
+		/**
+		 * The data of the matched trigger. May be null even when trigger() isn't,
+		 * if the trigger couldn't be found through the topic's inheritance.
+		 */
+		public Trigger matched () {
+			return this.matched;
+		}
+
+		/**
+		 * The captured stars, in order.
+		 */
+		public String[] stars () {
+			return this.stars;
+		}
+	}
+
+	/**
+	 * Create a match cache.
+	 *
+	 * @param size The most entries to keep.
+	 */
+	public MatchCache (int size) {
+		super(size);
+	}
+}
@@ -0,0 +1,310 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.text.Normalizer;
+
+/**
+ * Formats a user's message for reply matching: lowercases it, runs the
+ * substitutions, drops the characters that triggers can't match and
+ * collapses whitespace, so that words are separated by single spaces with
+ * none at either end.<p>
+ *
+ * In ASCII mode, lowercasing doesn't take a pass of its own: the
+ * substitutions and the sanitizing read the message through a view that
+ * lowercases each character as it's read. So the message is read once for the
+ * substitutions and once to sanitize it, or just once with no substitutions.
+ * Unicode mode folds and lowercases the message into a buffer first. ASCII
+ * characters are looked up in a table; the buffers are kept per thread and
+ * reused from one message to the next, so a message costs one new String.<p>
+ *
+ * In ASCII mode (the default) only a-z, 0-9 and spaces are kept, which is
+ * what triggers have always been matched against. In Unicode mode the message
+ * is first folded to its NFKC form (so full width letters, ligatures and the
+ * like become the plain letters they stand for, and accented letters are
+ * composed the same way however they were typed), letters are lowercased by
+ * their Unicode rules, and letters and digits of any script are kept. Triggers
+ * with non-ASCII letters should be written lowercase in NFC form.
+ */
+
+public class MessageNormalizer {
+	/**
+	 * Modes for the constructor.
+	 */
+	public static final int ASCII   = 0;
+	public static final int UNICODE = 1;
+
+	// Character classes for the ASCII table.
+	private static final byte DROP  = 0; // Not matched by triggers
+	private static final byte KEEP  = 1; // a-z and 0-9
+	private static final byte SPACE = 2; // Whitespace
+
+	private static final char[] LOWER = new char[128];
+	private static final byte[] CLASS = new byte[128];
+	static {
+		for (char c = 0; c < 128; c++) {
+			LOWER[c] = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				CLASS[c] = KEEP;
+			}
+			else if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B) {
+				CLASS[c] = SPACE;
+			}
+		}
+	}
+
+	// Buffers that don't grow past this are kept for the next message.
+	private static final int KEEP_BUFFER = 1024;
+
+	private final int mode;
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		protected Buffers initialValue () {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * The reusable buffers of one thread.
+	 */
+	private static class Buffers {
+		Lowered lowered = new Lowered(); // The message, lowercased as it's read (ASCII mode)
+		StringBuilder lower = new StringBuilder(); // After lowercasing (Unicode mode)
+		StringBuilder subbed = new StringBuilder(); // After substitutions
+		char[] out = new char[64]; // After sanitizing
+	}
+
+	/**
+	 * A view of a message that lowercases each character as it's read. In
+	 * ASCII mode a character always lowercases to exactly one character, so
+	 * the view lines up with the message.
+	 */
+	private static class Lowered implements CharSequence {
+		CharSequence text; // The message
+
+		public int length () {
+			return text.length();
+		}
+
+		public char charAt (int i) {
+			char c = text.charAt(i);
+			return (c < 128) ? LOWER[c] : Character.toLowerCase(c);
+		}
+
+		public CharSequence subSequence (int start, int end) {
+			return new StringBuilder(end - start).append(this, start, end);
+		}
+
+		public String toString () {
+			return subSequence(0, length()).toString();
+		}
+	}
+
+	/**
+	 * Create an ASCII mode normalizer.
+	 */
+	public MessageNormalizer () {
+		this(ASCII);
+	}
+
+	/**
+	 * Create a normalizer.
+	 *
+	 * @param mode ASCII or UNICODE.
+	 */
+	public MessageNormalizer (int mode) {
+		this.mode = (mode == UNICODE) ? UNICODE : ASCII;
+	}
+
+	/**
+	 * Get the mode, ASCII or UNICODE.
+	 */
+	public int mode () {
+		return mode;
+	}
+
+	/**
+	 * Format a message for matching.
+	 *
+	 * @param message The message.
+	 * @param subs    The substitutions to run on it after lowercasing, or null.
+	 */
+	public String normalize (CharSequence message, Substitutor subs) {
+		Buffers buf = buffers.get();
+		CharSequence lower;
+		if (mode == ASCII) {
+			buf.lowered.text = message;
+			lower = buf.lowered;
+		}
+		else {
+			buf.lower.setLength(0);
+			lowercase(message, buf.lower);
+			lower = buf.lower;
+		}
+
+		CharSequence text = lower;
+		if (subs != null) {
+			StringBuilder subbed = buf.subbed;
+			subbed.setLength(0);
+			if (subs.substitute(lower, subbed)) {
+				text = subbed;
+			}
+		}
+
+		String result = sanitize(text, buf);
+		buf.lowered.text = null;
+		release(buf);
+		return result;
+	}
+
+	/**
+	 * Format a text the way messages are, without substitutions (for the text
+	 * of <input> and <reply> tags and the like).
+	 *
+	 * @param text The text.
+	 */
+	public String normalize (CharSequence text) {
+		return normalize(text, null);
+	}
+
+	/**
+	 * Fold and lowercase a message into a buffer (Unicode mode).
+	 */
+	private void lowercase (CharSequence message, StringBuilder out) {
+		int n = message.length();
+		int i = 0;
+
+		// ASCII fast path.
+		for (; i < n; i++) {
+			char c = message.charAt(i);
+			if (c >= 128) {
+				break;
+			}
+			out.append(LOWER[c]);
+		}
+		if (i == n) {
+			return;
+		}
+
+		// Fold the rest first. Characters before i are ASCII, which
+		// NFKC leaves alone, but the last one may be the base of an accent.
+		if (i > 0) {
+			i--;
+			out.setLength(out.length() - 1);
+		}
+		String rest = Normalizer.normalize(message.subSequence(i, n), Normalizer.Form.NFKC);
+		n = rest.length();
+		for (i = 0; i < n; ) {
+			char c = rest.charAt(i);
+			if (c < 128) {
+				out.append(LOWER[c]);
+				i++;
+				continue;
+			}
+			int cp = rest.codePointAt(i);
+			out.appendCodePoint(Character.toLowerCase(cp));
+			i += Character.charCount(cp);
+		}
+	}
+
+	/**
+	 * Drop the characters triggers can't match and collapse the whitespace.
+	 */
+	private String sanitize (CharSequence text, Buffers buf) {
+		int n = text.length();
+		char[] out = buf.out;
+		if (out.length < n) {
+			out = buf.out = new char[Math.max(n, out.length * 2)];
+		}
+
+		int length = 0;
+		boolean space = false; // A space is due before the next kept character
+		for (int i = 0; i < n; ) {
+			char c = text.charAt(i);
+			byte type;
+			int count = 1;
+			if (c < 128) {
+				type = CLASS[c];
+			}
+			else {
+				int cp = Character.codePointAt(text, i);
+				count = Character.charCount(cp);
+				type = classify(cp);
+			}
+
+			if (type == KEEP) {
+				if (space) {
+					out[length++] = ' ';
+					space = false;
+				}
+				for (int j = 0; j < count; j++) {
+					out[length++] = text.charAt(i + j);
+				}
+			}
+			else if (type == SPACE && length > 0) {
+				space = true;
+			}
+			i += count;
+		}
+		return new String(out, 0, length);
+	}
+
+	/**
+	 * Classify a non-ASCII code point.
+	 */
+	private byte classify (int cp) {
+		if (Character.isWhitespace(cp) || Character.isSpaceChar(cp)) {
+			return SPACE;
+		}
+		if (mode == ASCII) {
+			return DROP;
+		}
+		if (Character.isLetterOrDigit(cp)) {
+			return KEEP;
+		}
+		switch (Character.getType(cp)) {
+			case Character.NON_SPACING_MARK:
+			case Character.COMBINING_SPACING_MARK:
+			case Character.ENCLOSING_MARK:
+				// Accents that didn't compose with their letter.
+				return KEEP;
+		}
+		return DROP;
+	}
+
+	/**
+	 * Let go of buffers that a long message made too big to keep around.
+	 */
+	private void release (Buffers buf) {
+		if (buf.lower.capacity() > KEEP_BUFFER) {
+			buf.lower = new StringBuilder();
+		}
+		if (buf.subbed.capacity() > KEEP_BUFFER) {
+			buf.subbed = new StringBuilder();
+		}
+		if (buf.out.length > KEEP_BUFFER) {
+			buf.out = new char[64];
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+/**
+ * The words of a formatted message, found once and shared by everything that
+ * matches the message against triggers.<p>
+ *
+ * A message is "canonical" when it is one or more words of [a-z0-9] separated
+ * by single spaces (see WordPattern). Only canonical messages are split; the
+ * word matchers leave any other message to the regexps, which only need its
+ * text. The IDs of the words are looked up the first time a matcher asks for
+ * them.
+ */
+
+public class MessageTokens {
+	private final String message; // The formatted message
+	private final String[] words; // Its words, or null if it isn't canonical
+	private final int[] offsets;  // Start and end offset of each word, in pairs
+	private Vocabulary vocabulary; // The vocabulary the IDs are from
+	private int[] ids;            // The IDs of the words
+
+	/**
+	 * Split a formatted message into words.
+	 *
+	 * @param message The formatted message.
+	 */
+	public MessageTokens (String message) {
+		this.message = message;
+		int[] offsets = new int [ message.length() + 1 ];
+		this.words = WordPattern.split(message, offsets);
+		this.offsets = offsets;
+	}
+
+	/**
+	 * The text of the message.
+	 */
+	public String message () {
+		return this.message;
+	}
+
+	/**
+	 * Whether the message is canonical, i.e. was split into words.
+	 */
+	public boolean canonical () {
+		return this.words != null;
+	}
+
+	/**
+	 * The words of the message, or null if it isn't canonical.
+	 */
+	public String[] words () {
+		return this.words;
+	}
+
+	/**
+	 * The vocabulary IDs of the words of the message (Vocabulary.UNKNOWN for
+	 * words the bot doesn't know), or null if it isn't canonical.
+	 *
+	 * @param vocabulary The bot's vocabulary.
+	 */
+	public int[] ids (Vocabulary vocabulary) {
+		if (words == null) {
+			return null;
+		}
+		if (this.vocabulary != vocabulary) {
+			this.ids = vocabulary.encode(words);
+			this.vocabulary = vocabulary;
+		}
+		return this.ids;
+	}
+
+	/**
+	 * The number of words in the message, or -1 if it isn't canonical.
+	 */
+	public int count () {
+		return (words == null) ? -1 : words.length;
+	}
+
+	/**
+	 * The offset in the message where a word starts.
+	 *
+	 * @param word The index of the word.
+	 */
+	public int start (int word) {
+		return offsets[word * 2];
+	}
+
+	/**
+	 * The offset in the message just past the end of a word.
+	 *
+	 * @param word The index of the word.
+	 */
+	public int end (int word) {
+		return offsets[word * 2 + 1];
+	}
+
+	/**
+	 * Get the text of a run of words, with the spaces between them.
+	 *
+	 * @param first The index of the first word.
+	 * @param end   The index just past the last word.
+	 */
+	public String text (int first, int end) {
+		return message.substring(start(first), end(end - 1));
+	}
+}
@@ -0,0 +1,103 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.Vector;
+
+/**
+ * The %Previous's that can apply to a topic, worked out by sortReplies().
+ *
+ * A topic sees the %Previous's of every topic it includes or inherits. Each
+ * entry pairs one %Previous, which is matched against the bot's last reply,
+ * with the triggers that follow it, which are matched against the user's
+ * message. Both sides are kept as TriggerTemplates, so static patterns are
+ * compiled once and dynamic ones only when their values change.
+ */
+
+public class PreviousIndex {
+	private final Entry[] entries;
+
+	/**
+	 * One %Previous and the triggers that follow it.
+	 */
+	public static class Entry {
+		private final String topic;            // The topic it came from
+		private final String previous;         // The %Previous text
+		private final TriggerTemplate bot;     // Matches the bot's last reply
+		private final String[] triggers;       // Text of the triggers that follow it
+		private final TriggerTemplate[] human; // Matches the user's message, per trigger
+		private final Trigger[] matched;       // Data of each trigger
+
+		public Entry (String topic, String previous, TriggerTemplate bot, String[] triggers,
+				TriggerTemplate[] human, Trigger[] matched) {
+			this.topic    = topic;
+			this.previous = previous;
+			this.bot      = bot;
+			this.triggers = triggers;
+			this.human    = human;
+			this.matched  = matched;
+		}
+
+		public String topic () {
+			return this.topic;
+		}
+
+		public String previous () {
+			return this.previous;
+		}
+
+		public TriggerTemplate bot () {
+			return this.bot;
+		}
+
+		public String[] triggers () {
+			return this.triggers;
+		}
+
+		public TriggerTemplate[] human () {
+			return this.human;
+		}
+
+		public Trigger[] matched () {
+			return this.matched;
+		}
+	}
+
+	/**
+	 * Create the index.
+	 *
+	 * @param entries The entries, in the order they should be tried.
+	 */
+	public PreviousIndex (Vector<Entry> entries) {
+		this.entries = entries.toArray(new Entry [0]);
+	}
+
+	/**
+	 * Get the entries, in the order they should be tried.
+	 */
+	public Entry[] entries () {
+		return this.entries;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.regex.Matcher;
+
+/**
+ * The original matching strategy: test each trigger's compiled regexp in sort
+ * order until one of them matches.
+ *
+ * Atomic triggers (plain words) are kept in a hash index instead, since they
+ * can only match a message that is the same text. Only the triggers sorted
+ * ahead of an atomic hit need their regexps tested.<p>
+ *
+ * The plain words each trigger requires are fed to a LiteralFilter, and a
+ * trigger's regexp is skipped when the message is missing one of them, or
+ * when the message has too few or too many words for the trigger.
+ */
+
+public class RegexMatcher implements TriggerMatcher {
+	private final CompiledTrigger[] triggers;  // The sort buffer (null entries are skipped)
+	private final HashMap<String, Integer> atomic =
+		new HashMap<String, Integer>();        // Atomic trigger text -> sort index
+	private final int[][] required;            // IDs of the words each trigger needs
+	private final LiteralFilter filter;        // Finds those words in a message
+
+	/**
+	 * Create a regexp matcher for a compiled sort buffer.
+	 *
+	 * @param triggers The compiled sort buffer. Entries may be null, in which
+	 *                 case they are never matched.
+	 */
+	public RegexMatcher (CompiledTrigger[] triggers) {
+		this.triggers = triggers;
+
+		// Index the atomic triggers by their text. If the same text appears more
+		// than once (e.g. from an included topic), the first one sorts highest.
+		for (int i = 0; i < triggers.length; i++) {
+			if (triggers[i] == null) {
+				continue;
+			}
+			String literal = triggers[i].literal();
+			if (literal != null && atomic.containsKey(literal) == false) {
+				atomic.put(literal, i);
+			}
+		}
+
+		// Collect the words each regexp trigger needs.
+		Vector<String> words = new Vector<String>();
+		Vector<Vector<String>> needs = new Vector<Vector<String>>(triggers.length);
+		for (int i = 0; i < triggers.length; i++) {
+			if (triggers[i] == null || triggers[i].literal() != null || triggers[i].regexp() == null) {
+				needs.add(null);
+				continue;
+			}
+			needs.add(LiteralFilter.required(triggers[i].pattern()));
+			words.addAll(needs.get(i));
+		}
+		this.filter = new LiteralFilter(words);
+		this.required = new int [ triggers.length ][];
+		for (int i = 0; i < triggers.length; i++) {
+			Vector<String> need = needs.get(i);
+			if (need != null && need.size() > 0) {
+				required[i] = new int [ need.size() ];
+				for (int j = 0; j < required[i].length; j++) {
+					required[i][j] = filter.id(need.get(j));
+				}
+			}
+		}
+	}
+
+	public TriggerMatch match (MessageTokens message) {
+		return match(message, triggers.length);
+	}
+
+	/**
+	 * Find the first matching trigger with an index below the given limit.
+	 *
+	 * @param tokens The words of the formatted message.
+	 * @param limit  Only triggers with a lower index are considered.
+	 */
+	public TriggerMatch match (MessageTokens tokens, int limit) {
+		String message = tokens.message();
+		limit = Math.min(limit, triggers.length);
+
+		// Look the message up in the atomic index first.
+		Integer hit = atomic.get(message);
+		if (hit != null && hit < limit) {
+			limit = hit;
+		}
+		else {
+			hit = null;
+		}
+
+		BitSet found = null;
+		int words = tokens.count();
+		for (int i = 0; i < limit; i++) {
+			CompiledTrigger trigger = triggers[i];
+
+			// Atomic triggers were already tested by the index lookup, and
+			// dynamic ones are up to the engine.
+			if (trigger == null || trigger.literal() != null || trigger.regexp() == null) {
+				continue;
+			}
+
+			// Skip the regexp if the message has the wrong number of words...
+			if (words > -1 && (words < trigger.minWords() || words > trigger.maxWords())) {
+				continue;
+			}
+
+			// ... or if a word it needs isn't in the message.
+			if (required[i] != null) {
+				if (found == null) {
+					found = filter.scan(message);
+				}
+				if (!hasAll(found, required[i])) {
+					continue;
+				}
+			}
+
+			Matcher m = trigger.regexp().matcher(message);
+			if (m.find()) {
+				return new TriggerMatch(i, m);
+			}
+		}
+
+		// Nothing ahead of the atomic trigger matched, so it wins.
+		if (hit != null) {
+			return new TriggerMatch(hit, message, new int [0]);
+		}
+		return null;
+	}
+
+	/**
+	 * Test whether all of a trigger's words were found in the message.
+	 */
+	private static boolean hasAll (BitSet found, int[] words) {
+		for (int id : words) {
+			if (!found.get(id)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+/**
+ * A bounded, least recently used cache of rendered replies.
+ *
+ * Some triggers have a reply that depends on nothing but the stars they
+ * captured: one reply, no conditions, no {random} and no tags that read or
+ * change any data (see RiveScriptEngine.sortReplies()). For those, the same
+ * stars always give the same text, so the engine can keep the text and skip
+ * the tag processing next time.
+ */
+
+public class ReplyCache extends LruCache<String> {
+	/**
+	 * Create a reply cache.
+	 *
+	 * @param size The most entries to keep.
+	 */
+	public ReplyCache (int size) {
+		super(size);
+	}
+}
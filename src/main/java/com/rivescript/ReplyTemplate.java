@@ -0,0 +1,401 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * A reply (or redirect, or side of a condition) parsed into a tree of tags.
+ *
+ * Parsing happens once, when the replies are sorted; the engine then walks the
+ * tree for each reply instead of running a series of regexps over the text. A
+ * reply with no tags in it is just its literal text.<p>
+ *
+ * Tags have side effects (&lt;set&gt; before &lt;get&gt;, and so on), and the
+ * engine has always handled each kind of tag in a fixed order: stars first,
+ * then &lt;input&gt; and &lt;reply&gt;, {random}, &lt;bot&gt;, &lt;env&gt;, {!stream},
+ * {person}, the string formatting tags, &lt;set&gt;, the math tags, &lt;get&gt;,
+ * {topic}, {&#64;redirect} and finally &lt;call&gt;. Each node has the phase of
+ * that order it belongs to, and siblings are evaluated by phase rather than
+ * left to right. A tag that wraps other tags is evaluated once everything
+ * inside it has been.
+ */
+
+public class ReplyTemplate {
+	// Node types, in the order the engine evaluates them.
+	public static final int TEXT      = 0;  // Plain text
+	public static final int STAR      = 1;  // <star>, <starN>
+	public static final int BOTSTAR   = 2;  // <botstar>, <botstarN>
+	public static final int ID        = 3;  // <id>
+	public static final int INPUT     = 4;  // <input>, <inputN>
+	public static final int REPLY     = 5;  // <reply>, <replyN>
+	public static final int RANDOM    = 6;  // {random}a|b{/random}
+	public static final int BOT       = 7;  // <bot name>, <bot name=value>
+	public static final int ENV       = 8;  // <env name>, <env name=value>
+	public static final int STREAM    = 9;  // {!code}
+	public static final int PERSON    = 10; // {person}text{/person}
+	public static final int FORMAL    = 11; // {formal}text{/formal}
+	public static final int SENTENCE  = 12; // {sentence}text{/sentence}
+	public static final int UPPERCASE = 13; // {uppercase}text{/uppercase}
+	public static final int LOWERCASE = 14; // {lowercase}text{/lowercase}
+	public static final int SET       = 15; // <set name=value>
+	public static final int ADD       = 16; // <add name=value>
+	public static final int SUB       = 17; // <sub name=value>
+	public static final int MULT      = 18; // <mult name=value>
+	public static final int DIV       = 19; // <div name=value>
+	public static final int GET       = 20; // <get name>
+	public static final int TOPIC     = 21; // {topic=name}
+	public static final int REDIRECT  = 22; // {@target}
+	public static final int CALL      = 23; // <call>name args</call>
+
+	// Names of the string formatting tags, by node type.
+	private static final String[] FORMATS = { "formal", "sentence", "uppercase", "lowercase" };
+
+	// Tags of the form <name ...>, by node type.
+	private static final String[] ANGLE_TAGS  = { "<bot ", "<env ", "<set ", "<add ", "<sub ", "<mult ", "<div ", "<get " };
+	private static final int[]    ANGLE_TYPES = { BOT, ENV, SET, ADD, SUB, MULT, DIV, GET };
+
+	private final Node[] nodes; // Top level nodes
+	private final int[] order;  // Order to evaluate them in
+	private final String literal; // The text, if there are no tags
+
+	/**
+	 * One node of the tree.
+	 */
+	public static class Node {
+		public final int type;
+		public final String text;      // The text of TEXT nodes
+		public final int index;        // Index for STAR, BOTSTAR, INPUT and REPLY nodes
+		public final Node[] children;  // Contents of tags that wrap other text
+		public final int[] order;      // Order to evaluate the children in
+		public final Node[][] choices; // Choices of a RANDOM node
+		public final int phase;        // When to evaluate it among its siblings
+
+		Node (int type, String text, int index, Node[] children, Node[][] choices) {
+			this.type     = type;
+			this.text     = text;
+			this.index    = index;
+			this.children = children;
+			this.order    = (children == null) ? null : order(children);
+			this.choices  = choices;
+
+			// A tag can't be evaluated until the tags inside it have been.
+			int phase = type;
+			for (Node child : (children == null) ? new Node [0] : children) {
+				phase = Math.max(phase, child.phase);
+			}
+			this.phase = phase;
+		}
+	}
+
+	private ReplyTemplate (Node[] nodes) {
+		this.nodes = nodes;
+		this.order = order(nodes);
+		if (nodes.length == 0) {
+			this.literal = "";
+		}
+		else if (nodes.length == 1 && nodes[0].type == TEXT) {
+			this.literal = nodes[0].text;
+		}
+		else {
+			this.literal = null;
+		}
+	}
+
+	/**
+	 * The top level nodes.
+	 */
+	public Node[] nodes () {
+		return this.nodes;
+	}
+
+	/**
+	 * The order to evaluate the top level nodes in.
+	 */
+	public int[] order () {
+		return this.order;
+	}
+
+	/**
+	 * The text of the reply if it has no tags in it, or null if it does.
+	 */
+	public String literal () {
+		return this.literal;
+	}
+
+	/**
+	 * Get the string formatting name of a FORMAL, SENTENCE, UPPERCASE or
+	 * LOWERCASE node.
+	 */
+	public static String format (int type) {
+		return FORMATS[ type - FORMAL ];
+	}
+
+	/**
+	 * Work out the order to evaluate a list of sibling nodes in: by phase,
+	 * then left to right.
+	 *
+	 * @param nodes The sibling nodes.
+	 */
+	public static int[] order (Node[] nodes) {
+		long[] keys = new long [ nodes.length ];
+		for (int i = 0; i < nodes.length; i++) {
+			keys[i] = ((long) nodes[i].phase << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		int[] order = new int [ nodes.length ];
+		for (int i = 0; i < nodes.length; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * Test whether a list of nodes has a {random} tag among them.
+	 */
+	public static boolean hasRandom (Node[] nodes) {
+		for (Node node : nodes) {
+			if (node.type == RANDOM) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*-- Parsing --*/
+
+	/**
+	 * Parse the text of a reply.
+	 *
+	 * @param text The reply text.
+	 */
+	public static ReplyTemplate parse (String text) {
+		Parser parser = new Parser(text);
+		return new ReplyTemplate(parser.list(null, false));
+	}
+
+	/**
+	 * A recursive descent parser over the reply text.
+	 */
+	private static class Parser {
+		private final String text;
+		private int pos = 0;
+		private boolean pipe = false; // Whether the last list ended at a '|'
+
+		Parser (String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Parse nodes up to a closing string.
+		 *
+		 * @param close The text that ends the list, or null for the end of the reply.
+		 * @param pipes Whether a '|' also ends the list (for {random}).
+		 * @return The nodes, or null if the closing text never came.
+		 */
+		Node[] list (String close, boolean pipes) {
+			Vector<Node> nodes = new Vector<Node>();
+			StringBuilder buffer = new StringBuilder();
+			pipe = false;
+
+			while (pos < text.length()) {
+				if (close != null && text.startsWith(close, pos)) {
+					pos += close.length();
+					pipe = false;
+					flush(nodes, buffer);
+					return nodes.toArray(new Node [0]);
+				}
+				if (pipes && text.charAt(pos) == '|') {
+					pos++;
+					pipe = true;
+					flush(nodes, buffer);
+					return nodes.toArray(new Node [0]);
+				}
+
+				int start = pos;
+				Node node = tag();
+				if (node == null) {
+					// Not a tag (or an unfinished one); keep it as text.
+					pos = start;
+					char c = text.charAt(pos++);
+					if (c == '\\' && pos < text.length()) {
+						char next = text.charAt(pos);
+						if (next == 's' || next == 'n' || next == '\\' || next == '#') {
+							pos++;
+							c = (next == 's') ? ' ' : (next == 'n') ? '\n' : next;
+						}
+					}
+					buffer.append(c);
+				}
+				else if (node.type != TEXT || node.text.length() > 0) {
+					flush(nodes, buffer);
+					nodes.add(node);
+				}
+			}
+
+			if (close != null) {
+				return null;
+			}
+			flush(nodes, buffer);
+			return nodes.toArray(new Node [0]);
+		}
+
+		/**
+		 * Try to parse a tag at the current position. Returns null if there
+		 * isn't one.
+		 */
+		private Node tag () {
+			char c = text.charAt(pos);
+			if (c == '<') {
+				return angle();
+			}
+			else if (c == '{') {
+				return brace();
+			}
+			return null;
+		}
+
+		/**
+		 * Tags that start with '<'.
+		 */
+		private Node angle () {
+			// Simple tags.
+			if (take("<star>"))   return new Node(STAR, null, 1, null, null);
+			if (take("<botstar>")) return new Node(BOTSTAR, null, 1, null, null);
+			if (take("<input>"))  return new Node(INPUT, null, 1, null, null);
+			if (take("<reply>"))  return new Node(REPLY, null, 1, null, null);
+			if (take("<id>"))     return new Node(ID, null, 0, null, null);
+			if (take("<star"))    return numbered(STAR, false);
+			if (take("<botstar")) return numbered(BOTSTAR, false);
+			if (take("<input"))   return numbered(INPUT, true);
+			if (take("<reply"))   return numbered(REPLY, true);
+
+			// Shortcuts for tags around <star>.
+			Node[] star = { new Node(STAR, null, 1, null, null) };
+			if (take("<person>"))    return new Node(PERSON, null, 0, star, null);
+			if (take("<@>"))         return new Node(REDIRECT, null, 0, star, null);
+			if (take("<formal>"))    return new Node(FORMAL, null, 0, star, null);
+			if (take("<sentence>"))  return new Node(SENTENCE, null, 0, star, null);
+			if (take("<uppercase>")) return new Node(UPPERCASE, null, 0, star, null);
+			if (take("<lowercase>")) return new Node(LOWERCASE, null, 0, star, null);
+
+			// Tags with contents.
+			if (take("<call>")) {
+				return wrap(CALL, "</call>");
+			}
+			for (int i = 0; i < ANGLE_TAGS.length; i++) {
+				if (take(ANGLE_TAGS[i])) {
+					return wrap(ANGLE_TYPES[i], ">");
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Tags that start with '{'.
+		 */
+		private Node brace () {
+			if (text.startsWith("{weight=", pos)) {
+				int end = pos + 8;
+				while (end < text.length() && Character.isDigit(text.charAt(end))) {
+					end++;
+				}
+				if (end > pos + 8 && end < text.length() && text.charAt(end) == '}') {
+					pos = end + 1;
+					return new Node(TEXT, "", 0, null, null);
+				}
+				return null;
+			}
+			if (take("{random}")) {
+				Vector<Node[]> choices = new Vector<Node[]>();
+				do {
+					Node[] choice = list("{/random}", true);
+					if (choice == null) {
+						return null;
+					}
+					choices.add(choice);
+				} while (pipe);
+				return new Node(RANDOM, null, 0, null, choices.toArray(new Node [0][]));
+			}
+			for (int type = FORMAL; type <= LOWERCASE; type++) {
+				if (take("{" + format(type) + "}")) {
+					return wrap(type, "{/" + format(type) + "}");
+				}
+			}
+			if (take("{person}")) return wrap(PERSON, "{/person}");
+			if (take("{topic="))  return wrap(TOPIC, "}");
+			if (take("{@"))       return wrap(REDIRECT, "}");
+			if (take("{!"))       return wrap(STREAM, "}");
+			return null;
+		}
+
+		/**
+		 * A tag around other text, up to its closing text.
+		 */
+		private Node wrap (int type, String close) {
+			Node[] children = list(close, false);
+			if (children == null || children.length == 0) {
+				return null;
+			}
+			return new Node(type, null, 0, children, null);
+		}
+
+		/**
+		 * The number and closing '>' of a numbered tag, like <star2>.
+		 *
+		 * @param digit Whether only one digit is allowed.
+		 */
+		private Node numbered (int type, boolean digit) {
+			int end = pos;
+			while (end < text.length() && Character.isDigit(text.charAt(end)) && !(digit && end > pos)) {
+				end++;
+			}
+			if (end == pos || end >= text.length() || text.charAt(end) != '>') {
+				return null;
+			}
+			// Stars past the ninth digit can't exist; they come out empty.
+			int index = (end - pos > 9) ? Integer.MAX_VALUE : Integer.parseInt(text.substring(pos, end));
+			pos = end + 1;
+			return new Node(type, null, index, null, null);
+		}
+
+		private boolean take (String prefix) {
+			if (text.startsWith(prefix, pos)) {
+				pos += prefix.length();
+				return true;
+			}
+			return false;
+		}
+
+		private void flush (Vector<Node> nodes, StringBuilder buffer) {
+			if (buffer.length() > 0) {
+				nodes.add(new Node(TEXT, buffer.toString(), 0, null, null));
+				buffer.setLength(0);
+			}
+		}
+	}
+}
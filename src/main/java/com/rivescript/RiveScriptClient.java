@@ -230,7 +230,7 @@ public class RiveScriptClient {
 		
 		// Save their chat history.
 		clients.client(username).addInput(message);
-		clients.client(username).addReply(reply);
+		clients.client(username).addReply(reply, engine.formatReply(reply));
 
 		// Clear the current user.
 		this.currentUser = null;
@@ -1,18 +1,25 @@
 package com.rivescript;
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * RiveScriptEngine is a threadsafe engine that holds the loaded data to return
@@ -24,6 +31,11 @@ public class RiveScriptEngine {
 	// Private class variables.
 	private boolean debug = false; // Debug mode
 	private int depth = 50; // Recursion depth limit
+	private String matcher = MATCHER_TRIE; // Trigger matching strategy
+	private MatchCache matchCache = null; // Cache of trigger matches (null if off)
+	private ReplyCache replyCache = null; // Cache of rendered replies (null if off)
+	private MessageNormalizer normalizer = new MessageNormalizer(); // Formats messages for matching
+	private Executor loadExecutor = null; // Reads files for loadDirectory() (null if on the calling thread)
 	
 	// TODO: check if this is a state violation
 	private static Random rand = new Random(); // A random number generator
@@ -35,6 +47,14 @@ public class RiveScriptEngine {
 	 */
 	public static final String VERSION = "0.6.0";
 
+	/**
+	 * Trigger matching strategies for setMatcher().
+	 */
+	public static final String MATCHER_TRIE  = "trie";
+	public static final String MATCHER_REGEX = "regex";
+	public static final String MATCHER_DFA   = "dfa";
+	public static final String MATCHER_GLOB  = "glob";
+
 	// Constant RiveScript command symbols.
 	private static final double RS_VERSION = 2.0; // This implements RiveScript
 													// 2.0
@@ -61,10 +81,14 @@ public class RiveScriptEngine {
 		private HashMap<String, String>         vars     = new HashMap<String, String>();         // ! var
 		private HashMap<String, Vector<String>> arrays   = new HashMap<String, Vector<String>>(); // ! array
 		private HashMap<String, String>         subs     = new HashMap<String, String>();         // ! sub
-		private String[]                        subs_s   = null;                                  // sorted subs
+		private Substitutor                     subber   = null;                                  // subs, ready to run
 
 		private HashMap<String, String>         person   = new HashMap<String, String>();         // ! person
-		private String[]                        person_s = null;                                  // sorted persons
+		private Substitutor                     personSubber = null;                              // persons, ready to run
+
+		private HashMap<String, ReplyTemplate>  replyTemplates = new HashMap<String, ReplyTemplate>(); // parsed replies
+		private Vocabulary                      vocabulary     = new Vocabulary(); // words of the sorted triggers
+		private Vector<String>                  redirectLoops  = new Vector<String>(); // loops found by sortReplies()
 		
 		String error = "";
 		
@@ -91,20 +115,34 @@ public class RiveScriptEngine {
 		/**
 		 * Get a reply from the RiveScript interpreter.
 		 *
-		 * @param username A unique user ID for the user chatting with the bot.
-		 * @param message  The user's message to the bot.
+		 * @param client  The client chatting with the bot.
+		 * @param message The user's message to the bot.
 		 */
 		public String reply (Client client, String message) {
-			
+			StringBuilder reply = new StringBuilder();
+			try {
+				this.reply(client, message, reply);
+			} catch (IOException e) {
+				// A StringBuilder never throws this.
+			}
+			return reply.toString();
+		}
 
+		/**
+		 * Get a reply from the RiveScript interpreter, writing it to a buffer or
+		 * stream instead of returning a string.
+		 *
+		 * @param client  The client chatting with the bot.
+		 * @param message The user's message to the bot.
+		 * @param out     Where to write the reply.
+		 * @throws IOException if writing to out fails.
+		 */
+		public void reply (Client client, CharSequence message, Appendable out) throws IOException {
 			// Store the current ID in case an object macro wants it.
 			//this.currentUser = username;
 
 			// Format their message first.
-			message = formatMessage (message);
-
-			// This will hold the final reply.
-			String reply = "";
+			String formatted = formatMessage(message.toString());
 
 			// If the BEGIN statement exists, consult it first.
 			if (topics.exists("__begin__")) {
@@ -113,28 +151,20 @@ public class RiveScriptEngine {
 				// OK to continue?
 				if (begin.indexOf("{ok}") > -1) {
 					// Get a reply then.
-					reply = this.reply (client, message, false, 0);
-					begin = begin.replaceAll("\\{ok\\}", reply);
-					reply = begin;
-				}
-				else {
-					reply = begin;
+					String reply = this.reply (client, formatted, false, 0);
+					begin = begin.replace("{ok}", reply);
 				}
 
 				// Run final substitutions.
-				reply = processTags (client, message, reply,
-					new Vector<String>(), new Vector<String>(),
-					0);
+				Frame frame = new Frame(formatted, false, 0);
+				frame.state = Frame.TAGS;
+				frame.reply = begin;
+				run(client, frame, out);
 			}
 			else {
 				// No BEGIN, just continue.
-				reply = this.reply (client, message, false, 0);
+				this.reply (client, formatted, false, 0, out);
 			}
-
-			
-
-			// Return their reply.
-			return reply;
 		}
 
 		/**
@@ -146,16 +176,179 @@ public class RiveScriptEngine {
 		 * @param step    The recursion depth that we're at so far.
 		 */
 		private String reply (Client profile, String message, boolean begin, int step) {
+			StringBuilder reply = new StringBuilder();
+			try {
+				this.reply(profile, message, begin, step, reply);
+			} catch (IOException e) {
+				// A StringBuilder never throws this.
+			}
+			return reply.toString();
+		}
+
+		/**
+		 * Internal method for getting a reply, written to a buffer or stream.
+		 *
+		 * Redirects are followed in a loop rather than by recursion: each step
+		 * of the chain is a frame on a stack. A frame that chooses a redirect,
+		 * or whose tags reach a {@...} tag, waits while a frame for the
+		 * redirect is run on top of it, and carries on with that frame's reply.
+		 *
+		 * @param client  the client with the message
+		 * @param message The (formatted!) message sent by the user.
+		 * @param begin   Whether the context is that we're in the BEGIN statement or not.
+		 * @param step    The recursion depth that we're at so far.
+		 * @param out     Where to write the reply.
+		 */
+		private void reply (Client profile, String message, boolean begin, int step, Appendable out) throws IOException {
+			run(profile, new Frame(message, begin, step), out);
+		}
+
+		/**
+		 * Run a frame, and the frames of the redirects it follows, until it has
+		 * its reply.
+		 *
+		 * @param profile The client with the message.
+		 * @param root    The frame to run.
+		 * @param out     Where to write its reply.
+		 */
+		private void run (Client profile, Frame root, Appendable out) throws IOException {
+			Vector<Frame> frames = new Vector<Frame>();
+			frames.add(root);
+			String reply = null; // The reply of the frame that just finished
+			while (true) {
+				Frame frame = frames.lastElement();
+				advance(profile, frame, reply);
+				reply = null;
+				if (frame.follow != null) {
+					// It's waiting on a redirect; run that first.
+					frames.add(frame.follow);
+					frame.follow = null;
+					continue;
+				}
+
+				frames.remove(frames.size() - 1);
+				if (frames.isEmpty()) {
+					out.append(frame.result);
+					return;
+				}
+				reply = frame.result;
+			}
+		}
+
+		/**
+		 * One step of following redirects in reply().
+		 */
+		private static class Frame {
+			// What the frame is doing (see advance()).
+			static final int FIND     = 0; // Matching the message
+			static final int CHOOSE   = 1; // Testing conditions, choosing a reply or redirect
+			static final int REDIRECT = 2; // Processing the tags of the redirect it chose
+			static final int SHORTCUT = 3; // Checking for a reply that is only a {@...} tag
+			static final int FOLLOW   = 4; // Waiting for the reply of its redirect
+			static final int FINISH   = 5; // Processing the tags of its reply
+			static final int TAGS     = 6; // Processing the tags of a given reply, without matching
+			static final int DONE     = 7;
+
+			String message;                                 // The (formatted) message
+			boolean begin;                                  // Whether it's in the BEGIN statement
+			int step;                                       // The recursion depth
+			int state               = FIND;
+			Vector<String> stars    = new Vector<String>(); // Wildcard matches
+			Vector<String> botstars = new Vector<String>(); // Wildcards in %Previous
+			boolean foundMatch      = false;                // Whether a trigger matched
+			Trigger trigger         = null;                 // The trigger that matched
+			int condition           = 0;                    // The next condition to test
+			String left             = null;                 // Its left half, once processed
+			String reply            = "";                   // The reply chosen
+			String redirect         = null;                 // Where it redirects to, if it does
+			boolean finished        = false;                // Whether the reply is final as it is
+			Trigger pure            = null;                 // The trigger, if its reply can be cached
+			Evaluation evaluation   = null;                 // Tags waiting on a {@...} tag
+			Frame follow            = null;                 // A redirect to run before carrying on
+			String answer           = null;                 // The reply of that redirect, once run
+			String result           = null;                 // The finished reply
+
+			Frame (String message, boolean begin, int step) {
+				this.message = message;
+				this.begin   = begin;
+				this.step    = step;
+			}
+		}
+
+		/**
+		 * Carry a frame on until it has its reply, or until it has to wait for
+		 * the reply of a redirect (then frame.follow is the frame to run).
+		 *
+		 * @param profile The client with the message.
+		 * @param frame   The frame.
+		 * @param reply   The reply of the redirect it was waiting for, if any.
+		 */
+		private void advance (Client profile, Frame frame, String reply) {
+			frame.answer = reply;
+			while (frame.follow == null && frame.state != Frame.DONE) {
+				switch (frame.state) {
+					case Frame.FIND:
+						findReply(profile, frame);
+						break;
+
+					case Frame.CHOOSE:
+						chooseReply(profile, frame);
+						break;
+
+					case Frame.REDIRECT: {
+						String redirect = processTags(profile, frame, replyTemplate(frame.redirect), frame.step);
+						if (redirect != null) {
+							say("Chosen a redirect to " + redirect + "!");
+							frame.redirect = redirect;
+							frame.follow = new Frame(redirect, frame.begin, frame.step + 1);
+							frame.state = Frame.FOLLOW;
+						}
+						break;
+					}
+
+					case Frame.SHORTCUT:
+						shortcut(profile, frame);
+						break;
+
+					case Frame.FOLLOW:
+						// The reply is whatever the redirect gave.
+						frame.reply = frame.answer;
+						frame.state = Frame.FINISH;
+						break;
+
+					case Frame.FINISH:
+						finishReply(profile, frame);
+						break;
+
+					case Frame.TAGS: {
+						String text = processTags(profile, frame, replyTemplate(frame.reply), frame.step);
+						if (text != null) {
+							frame.result = text;
+							frame.state = Frame.DONE;
+						}
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Match the message of a frame against the triggers.
+		 *
+		 * @param profile The client with the message.
+		 * @param frame   The step, with its message and depth.
+		 */
+		private void findReply (Client profile, Frame frame) {
 			/*-----------------------*/
 			/*-- Collect User Info --*/
 			/*-----------------------*/
 
+			String message          = frame.message;
+			int step                = frame.step;
+			boolean begin           = frame.begin;
 			String topic            = "random";             // Default topic = random
-			Vector<String> stars    = new Vector<String>(); // Wildcard matches
-			Vector<String> botstars = new Vector<String>(); // Wildcards in %Previous
-			String reply            = "";                   // The eventual reply
-
-	
+			Vector<String> stars    = frame.stars;          // Wildcard matches
+			Vector<String> botstars = frame.botstars;       // Wildcards in %Previous
 
 			// Update their topic.
 			topic = profile.get("topic");
@@ -169,9 +362,11 @@ public class RiveScriptEngine {
 
 			// Avoid deep recursion.
 			if (step > depth) {
-				reply = "ERR: Deep Recursion Detected!";
-				cry(reply);
-				return reply;
+				frame.reply = "ERR: Deep Recursion Detected!";
+				frame.finished = true;
+				frame.state = Frame.FINISH;
+				cry(frame.reply);
+				return;
 			}
 
 			// Are we in the BEGIN statement?
@@ -191,78 +386,60 @@ public class RiveScriptEngine {
 
 			// See if there are any %previous's in this topic, or any topic related to it. This
 			// should only be done the first time -- not during a recursive redirection.
-			if (step == 0) {
+			PreviousIndex previous = this.topics.topic(topic).previousIndex();
+			if (step == 0 && previous != null) {
 				say("Looking for a %Previous");
-				String[] allTopics = { topic };
-				if (this.topics.topic(topic).includes().length > 0 || this.topics.topic(topic).inherits().length > 0) {
-					// We need to walk the topic tree.
-					allTopics = this.topics.getTopicTree(topic, 0);
-				}
-				for (int i = 0; i < allTopics.length; i++) {
-					// Does this topic have a %Previous anywhere?
-					say("Seeing if " + allTopics[i] + " has a %Previous");
-					if (this.topics.topic(allTopics[i]).hasPrevious()) {
-						say("Topic " + allTopics[i] + " has at least one %Previous");
-
-						// Get them.
-						String[] previous = this.topics.topic(allTopics[i]).listPrevious();
-						for (int j = 0; j < previous.length; j++) {
-							say("Candidate: " + previous[j]);
-
-							// Try to match the bot's last reply against this.
-							String lastReply = formatMessage(profile.getReply(1));
-							String regexp    = triggerRegexp( profile, previous[j]);
-							say("Compare " + lastReply + " <=> " + previous[j] + " (" + regexp + ")");
-
-							// Does it match?
-							Pattern re = Pattern.compile("^" + regexp + "$");
-							Matcher m  = re.matcher(lastReply);
-							while (m.find() == true) {
-								say("OMFG the lastReply matches!");
-
-								// Harvest the botstars.
-								for (int s = 1; s <= m.groupCount(); s++) {
-									say("Add botstar: " + m.group(s));
-									botstars.add(m.group(s));
-								}
-
-								// Now see if the user matched this trigger too!
-								String[] candidates = this.topics.topic(allTopics[i]).listPreviousTriggers(previous[j]);
-								for (int k = 0; k < candidates.length; k++) {
-									say("Does the user's message match " + candidates[k] + "?");
-									String humanside = triggerRegexp( profile, candidates[k]);
-									say("Compare " + message + " <=> " + candidates[k] + " (" + humanside + ")");
-
-									Pattern reH = Pattern.compile("^" + humanside + "$");
-									Matcher mH  = reH.matcher(message);
-									while (mH.find() == true) {
-										say("It's a match!!!");
-
-										// Make sure it's all valid.
-										String realTrigger = candidates[k] + "{previous}" + previous[j];
-										if (this.topics.topic(allTopics[i]).triggerExists(realTrigger)) {
-											// Seems to be! Collect the stars.
-											for (int s = 1; s <= mH.groupCount(); s++) {
-												say("Add star: " + mH.group(s));
-												stars.add(mH.group(s));
-											}
-
-											foundMatch = true;
-											matchedTrigger = candidates[k];
-											matched = this.topics.topic(allTopics[i]).trigger(realTrigger);
-										}
-
-										break;
-									}
+				String lastReply = null;
+				PreviousIndex.Entry[] entries = previous.entries();
+				for (int i = 0; i < entries.length && !foundMatch; i++) {
+					PreviousIndex.Entry entry = entries[i];
+					say("Candidate: " + entry.previous() + " (in topic " + entry.topic() + ")");
+
+					// Try to match the bot's last reply against this. The client
+					// usually stored it formatted already.
+					if (lastReply == null) {
+						lastReply = profile.getNormalizedReply(1);
+					}
+					if (lastReply == null) {
+						lastReply = formatMessage(profile.getReply(1));
+					}
+					TriggerTemplate bot = entry.bot();
+					String[] values = slotValues(profile, bot);
+					say("Compare " + lastReply + " <=> " + entry.previous() + " (" + bot.regexp(values) + ")");
 
-									if (foundMatch) {
-										break;
-									}
-								}
-								if (foundMatch) {
-									break;
-								}
+					// Does it match?
+					TriggerMatch m = bot.match(0, lastReply, values);
+					if (m == null) {
+						continue;
+					}
+					say("OMFG the lastReply matches!");
+
+					// Now see if the user matched this trigger too!
+					String[] candidates = entry.triggers();
+					TriggerTemplate[] human = entry.human();
+					for (int k = 0; k < candidates.length; k++) {
+						say("Does the user's message match " + candidates[k] + "?");
+						String[] humanValues = slotValues(profile, human[k]);
+						say("Compare " + message + " <=> " + candidates[k] + " (" + human[k].regexp(humanValues) + ")");
+
+						TriggerMatch mH = human[k].match(k, message, humanValues);
+						if (mH != null) {
+							say("It's a match!!!");
+
+							// Harvest the botstars and the stars.
+							for (int s = 1; s <= m.starCount(); s++) {
+								say("Add botstar: " + m.star(s));
+								botstars.add(m.star(s));
+							}
+							for (int s = 1; s <= mH.starCount(); s++) {
+								say("Add star: " + mH.star(s));
+								stars.add(mH.star(s));
 							}
+
+							foundMatch = true;
+							matchedTrigger = candidates[k];
+							matched = entry.matched()[k];
+							break;
 						}
 					}
 				}
@@ -270,43 +447,37 @@ public class RiveScriptEngine {
 
 			// Search their topic for a match to their trigger.
 			if (foundMatch == false) {
-				// Go through the sort buffer for their topic.
-				String[] triggers = topics.topic(topic).listTriggers();
-				for (int a = 0; a < triggers.length; a++) {
-					String trigger = triggers[a];
-
-					// Prepare the trigger for the regular expression engine.
-					String regexp = triggerRegexp(profile, trigger);
-					say("Try to match \"" + message + "\" against \"" + trigger + "\" (" + regexp + ")");
-
-					// Is it a match?
-					Pattern re = Pattern.compile("^" + regexp + "$");
-					Matcher m  = re.matcher(message);
-					if (m.find() == true) {
-						say("The trigger matches! Star count: " + m.groupCount());
-
-						// Harvest the stars.
-						int starcount = m.groupCount();
-						for (int s = 1; s <= starcount; s++) {
-							say("Add star: " + m.group(s));
-							stars.add(m.group(s));
-						}
-
-						// We found a match, but what if the trigger we matched belongs to
-						// an inherited topic? Check for that.
-						if (this.topics.topic(topic).triggerExists(trigger)) {
-							// No, the trigger does belong to us.
-							matched = this.topics.topic(topic).trigger(trigger);
-						}
-						else {
-							say("Trigger doesn't exist under this topic, trying to find it!");
-							matched = this.topics.findTriggerByInheritance(topic, trigger, 0);
-						}
+				// Static redirects were matched when the replies were sorted.
+				MatchCache.Result result = this.topics.topic(topic).redirect(message);
+				String cacheKey = null;
+				if (result != null) {
+					say("Found the match for redirect \"" + message + "\" ahead of time");
+				}
+				else if (matchCache != null) {
+					cacheKey = matchCacheKey(profile, topic, message);
+					result = matchCache.get(cacheKey);
+					if (result != null) {
+						say("Found the match for \"" + message + "\" in the cache");
+					}
+				}
+				if (result == null) {
+					result = findMatch(profile, topic, message);
+					if (cacheKey != null) {
+						matchCache.put(cacheKey, result);
+					}
+				}
 
-						foundMatch = true;
-						matchedTrigger = trigger;
-						break;
+				if (result.trigger() != null) {
+					// Harvest the stars.
+					String[] found = result.stars();
+					for (int s = 0; s < found.length; s++) {
+						say("Add star: " + found[s]);
+						stars.add(found[s]);
 					}
+
+					foundMatch = true;
+					matched = result.matched();
+					matchedTrigger = result.trigger();
 				}
 			}
 
@@ -314,231 +485,146 @@ public class RiveScriptEngine {
 			profile.set("__lastmatch__", matchedTrigger);
 
 			// Did they match anything?
+			if (foundMatch && matched == null) {
+				cry("Unknown error: they matched trigger " + matchedTrigger + ", but it doesn't exist?");
+				foundMatch = false;
+			}
 			if (foundMatch) {
 				say("They were successfully matched to a trigger!");
+				say("The trigger matched belongs to topic " + matched.topic());
+				if (matched.conditions().length > 0) {
+					say("This trigger has some conditions!");
+				}
+			}
 
-				/*---------------------------------*/
-				/*-- Process Their Matched Reply --*/
-				/*---------------------------------*/
-
-				// Make a dummy once loop so we can break out anytime.
-				for (int n = 0; n < 1; n++) {
-					// Exists?
-					if (matched == null) {
-						cry("Unknown error: they matched trigger " + matchedTrigger + ", but it doesn't exist?");
-						foundMatch = false;
-						break;
-					}
-
-					// Get the trigger object.
-					Trigger trigger = matched;
-					say("The trigger matched belongs to topic " + trigger.topic());
-
-					// Check for conditions.
-					String[] conditions = trigger.listConditions();
-					if (conditions.length > 0) {
-						say("This trigger has some conditions!");
-
-						// See if any conditions are true.
-						boolean truth = false;
-						for (int c = 0; c < conditions.length; c++) {
-							// Separate the condition from the potential reply.
-							String[] halves = conditions[c].split("\\s*=>\\s*");
-							String condition = halves[0].trim();
-							String potreply  = halves[1].trim();
-
-							// Split up the condition.
-							Pattern reCond = Pattern.compile("^(.+?)\\s+(==|eq|\\!=|ne|<>|<|<=|>|>=)\\s+(.+?)$");
-							Matcher mCond  = reCond.matcher(condition);
-							while (mCond.find()) {
-								String left  = mCond.group(1).trim();
-								String eq    = mCond.group(2).trim();
-								String right = mCond.group(3).trim();
-
-								// Process tags on both halves.
-								left = processTags( profile, message, left, stars, botstars, step+1);
-								right = processTags( profile, message, right, stars, botstars, step+1);
-								say("Compare: " + left + " " + eq + " " + right);
-
-								// Defaults
-								if (left.length() == 0) {
-									left = "undefined";
-								}
-								if (right.length() == 0) {
-									right = "undefined";
-								}
-
-								// Validate the expression.
-								if (eq.equals("eq") || eq.equals("ne") || eq.equals("==") || eq.equals("!=") || eq.equals("<>")) {
-									// String equality comparing.
-									if ((eq.equals("eq") || eq.equals("==")) && left.equals(right)) {
-										truth = true;
-										break;
-									}
-									else if ((eq.equals("ne") || eq.equals("!=") || eq.equals("<>")) && !left.equals(right)) {
-										truth = true;
-										break;
-									}
-								}
-
-								// Numeric comparing.
-								int lt = 0;
-								int rt = 0;
-
-								// Turn the two sides into numbers.
-								try {
-									lt = Integer.parseInt(left);
-									rt = Integer.parseInt(right);
-								} catch (NumberFormatException e) {
-									// Oh well!
-									break;
-								}
-
-								// Run the remaining equality checks.
-								if (eq.equals("==") || eq.equals("!=") || eq.equals("<>")) {
-									// Equality checks.
-									if (eq.equals("==") && lt == rt) {
-										truth = true;
-										break;
-									}
-									else if ((eq.equals("!=") || eq.equals("<>")) && lt != rt) {
-										truth = true;
-										break;
-									}
-								}
-								else if (eq.equals("<") && lt < rt) {
-									truth = true;
-									break;
-								}
-								else if (eq.equals("<=") && lt <= rt) {
-									truth = true;
-									break;
-								}
-								else if (eq.equals(">") && lt > rt) {
-									truth = true;
-									break;
-								}
-								else if (eq.equals(">=") && lt >= rt) {
-									truth = true;
-									break;
-								}
-							}
-
-							// True condition?
-							if (truth) {
-								reply = potreply;
-								break;
-							}
-						}
-					}
+			frame.foundMatch = foundMatch;
+			frame.trigger = matched;
+			frame.state = foundMatch ? Frame.CHOOSE : Frame.FINISH;
+		}
 
-					// Break if we got a reply from the conditions.
-					if (reply.length() > 0) {
-						break;
+		/**
+		 * Test the conditions of the trigger a frame matched, then choose one of
+		 * its replies or redirects if none of them was true.
+		 *
+		 * @param profile The client with the message.
+		 * @param frame   The step.
+		 */
+		private void chooseReply (Client profile, Frame frame) {
+			Trigger trigger = frame.trigger;
+
+			// See if any conditions are true.
+			Condition[] conditions = trigger.conditions();
+			while (frame.condition < conditions.length) {
+				Condition condition = conditions[frame.condition];
+
+				// Process tags on both halves.
+				if (frame.left == null) {
+					frame.left = processTags(profile, frame, condition.left(), frame.step+1);
+					if (frame.left == null) {
+						return;
 					}
+				}
+				String right = processTags(profile, frame, condition.right(), frame.step+1);
+				if (right == null) {
+					return;
+				}
+				String left = frame.left;
+				frame.left = null;
+				frame.condition++;
+				say("Compare: " + left + " and " + right + " for: " + condition.text());
+
+				// True condition?
+				if (condition.test(left, right)) {
+					frame.reply = condition.reply();
+					break;
+				}
+			}
+			frame.state = Frame.SHORTCUT;
 
-					// Return one of the replies at random. We lump any redirects in as well.
-					String[] redirects = trigger.listRedirects();
-					String[] replies   = trigger.listReplies();
-
-					// Take into account their weights.
-					Vector<Integer> bucket = new Vector<Integer>();
-					Pattern reWeight = Pattern.compile("\\{weight=(\\d+?)\\}");
-
-					// Look at weights on redirects.
-					for (int i = 0; i < redirects.length; i++) {
-						if (redirects[i].indexOf("{weight=") > -1) {
-							Matcher mWeight = reWeight.matcher(redirects[i]);
-							while (mWeight.find()) {
-								int weight = Integer.parseInt(mWeight.group(1));
-
-								// Add to the bucket this many times.
-								if (weight > 1) {
-									for (int j = 0; j < weight; j++) {
-										say("Trigger has a redirect (weight " + weight + "): " + redirects[i]);
-										bucket.add(i);
-									}
-								}
-								else {
-									say("Trigger has a redirect (weight " + weight + "): " + redirects[i]);
-									bucket.add(i);
-								}
+			// Done if we got a reply from the conditions.
+			if (frame.reply.length() > 0) {
+				return;
+			}
 
-								// Only one weight is supported.
-								break;
-							}
-						}
-						else {
-							say("Trigger has a redirect: " + redirects[i]);
-							bucket.add(i);
-						}
+			// Return one of the replies at random, taking into account their
+			// weights. We lump any redirects in as well.
+			int choice = trigger.chooseReply(rand);
+			if (choice > -1) {
+				int redirects = trigger.countRedirects();
+				say("Chosen: " + choice);
+				if (choice < redirects) {
+					// The choice was a redirect! Its tags are processed next.
+					frame.redirect = trigger.getRedirect(choice).replaceAll("\\{weight=\\d+\\}","");
+					frame.state = Frame.REDIRECT;
+				}
+				else {
+					// The choice was a reply!
+					choice -= redirects;
+					say("Chosen a reply: " + trigger.getReply(choice));
+					frame.reply = trigger.getReply(choice);
+					if (trigger.isPure()) {
+						frame.pure = trigger;
 					}
+				}
+			}
+		}
 
-					// Look at weights on replies.
-					for (int i = 0; i < replies.length; i++) {
-						if (replies[i].indexOf("{weight=") > -1) {
-							Matcher mWeight = reWeight.matcher(replies[i]);
-							while (mWeight.find()) {
-								int weight = Integer.parseInt(mWeight.group(1));
-
-								// Add to the bucket this many times.
-								if (weight > 1) {
-									for (int j = 0; j < weight; j++) {
-										say("Trigger has a reply (weight " + weight + "): " + replies[i]);
-										bucket.add(redirects.length + i);
-									}
-								}
-								else {
-									say("Trigger has a reply (weight " + weight + "): " + replies[i]);
-									bucket.add(redirects.length + i);
-								}
-
-								// Only one weight is supported.
-								break;
-							}
-						}
-						else {
-							say("Trigger has a reply: " + replies[i]);
-							bucket.add(redirects.length + i);
-						}
-					}
+		/**
+		 * Follow a reply that is only a {@redirect} tag like a redirect.
+		 *
+		 * @param profile The client with the message.
+		 * @param frame   The step.
+		 */
+		private void shortcut (Client profile, Frame frame) {
+			ReplyTemplate.Node[] nodes = replyTemplate(frame.reply).nodes();
+			if (frame.begin || nodes.length != 1 || nodes[0].type != ReplyTemplate.REDIRECT) {
+				frame.state = Frame.FINISH;
+				return;
+			}
 
-					// Pull a random value out.
-					int[] choices = com.rivescript.Util.Iv2s(bucket);
-					if (choices.length > 0) {
-						int choice = choices [ rand.nextInt(choices.length) ];
-						say("Possible choices: " + choices.length + "; chosen: " + choice);
-						if (choice < redirects.length) {
-							// The choice was a redirect!
-							String redirect = redirects[choice].replaceAll("\\{weight=\\d+\\}","");
-							redirect = processTags ( profile, message, redirect, stars, botstars, step);
-							say("Chosen a redirect to " + redirect + "!");
-							reply = reply(profile, redirect, begin, step+1);
-						}
-						else {
-							// The choice was a reply!
-							choice -= redirects.length;
-							if (choice < replies.length) {
-								say("Chosen a reply: " + replies[choice]);
-								reply = replies[choice];
-							}
-						}
-					}
+			String redirect = "";
+			if (nodes[0].children != null) {
+				redirect = processTags(profile, frame, nodes[0].children, nodes[0].order, frame.step);
+				if (redirect == null) {
+					return;
 				}
 			}
+			say("Chosen a redirect to " + redirect.trim() + "!");
+			frame.redirect = redirect.trim();
+			frame.finished = true;
+			frame.follow = new Frame(frame.redirect, false, frame.step + 1);
+			frame.state = Frame.FOLLOW;
+		}
+
+		/**
+		 * Finish the reply of one step of reply(), once any redirect it chose has
+		 * been followed.
+		 *
+		 * @param profile The client with the message.
+		 * @param frame   The step.
+		 */
+		private void finishReply (Client profile, Frame frame) {
+			String reply = frame.reply;
+			if (frame.finished) {
+				frame.result = reply;
+				frame.state = Frame.DONE;
+				return;
+			}
 
 			// Still no reply?
-			if (!foundMatch) {
+			if (!frame.foundMatch) {
 				reply = "ERR: No Reply Matched";
 			}
 			else if (reply.length() == 0) {
 				reply = "ERR: No Reply Found";
 			}
 
-			say("Final reply: " + reply + " (begin: " + begin + ")");
+			if (frame.evaluation == null) {
+				say("Final reply: " + reply + " (begin: " + frame.begin + ")");
+			}
 
 			// Special tag processing for the BEGIN statement.
-			if (begin) {
+			if (frame.begin) {
 				// The BEGIN block may have {topic} or <set> tags and that's all.
 				// <set> tag
 				if (reply.indexOf("<set") > -1) {
@@ -560,29 +646,219 @@ public class RiveScriptEngine {
 					Pattern reTopic = Pattern.compile("\\{topic=(.+?)\\}");
 					Matcher mTopic  = reTopic.matcher(reply);
 					while (mTopic.find()) {
-						String tag = mTopic.group(0);
-						topic      = mTopic.group(1);
+						String tag   = mTopic.group(0);
+						String topic = mTopic.group(1);
 						say("Set user's topic to: " + topic);
 						profile.set("topic", topic);
 						reply = reply.replace(tag, "");
 					}
 				}
+				frame.result = reply;
+			}
+			else if (replyCache != null && frame.pure != null && replyTemplate(reply).literal() == null) {
+				// The reply only depends on the stars; it may have been rendered
+				// before. Such replies have no {@...} tags, so their tags never
+				// have to wait.
+				String key = replyCacheKey(frame);
+				String cached = replyCache.get(key);
+				if (cached == null) {
+					cached = processTags(profile, frame, replyTemplate(reply), frame.step);
+					replyCache.put(key, cached);
+				}
+				else {
+					say("Found the reply in the cache");
+				}
+				frame.result = cached;
 			}
 			else {
 				// Process tags.
-				reply = processTags (profile, message, reply, stars, botstars, step);
+				frame.result = processTags(profile, frame, replyTemplate(reply), frame.step);
+				if (frame.result == null) {
+					return;
+				}
+			}
+			frame.state = Frame.DONE;
+		}
+
+		/**
+		 * Build the reply cache key for a step of reply(): the trigger, and the
+		 * stars and botstars it matched.
+		 */
+		private String replyCacheKey (Frame frame) {
+			StringBuilder key = new StringBuilder();
+			key.append(frame.pure.topic()).append('\u0000').append(frame.pure.pattern());
+			for (String star : frame.stars) {
+				key.append('\u0000').append(star);
+			}
+			key.append('\u0001');
+			for (String botstar : frame.botstars) {
+				key.append('\u0000').append(botstar);
+			}
+			return key.toString();
+		}
+
+		/**
+		 * Search a topic for the trigger that best matches a message.
+		 *
+		 * @param profile The calling client profile.
+		 * @param topic   The name of the topic.
+		 * @param message The formatted message.
+		 */
+		private MatchCache.Result findMatch (Client profile, String topic, String message) {
+			// Find the best static trigger for the message.
+			com.rivescript.Topic current = topics.topic(topic);
+			CompiledTrigger[] triggers = current.listCompiled();
+			TriggerMatch match = current.match(new MessageTokens(message));
+
+			// Dynamic triggers have to be filled in with the user's data, but
+			// only the ones sorted ahead of the static match need to be tried.
+			int[] dynamic = current.listDynamic();
+			for (int d = 0; d < dynamic.length; d++) {
+				int a = dynamic[d];
+				if (match != null && a > match.index()) {
+					break;
+				}
+
+				TriggerTemplate template = triggers[a].template();
+				String[] values = slotValues(profile, template);
+				if (debug) {
+					say("Try to match \"" + message + "\" against \"" + triggers[a].pattern() + "\" (" + template.regexp(values) + ")");
+				}
+
+				TriggerMatch m = template.match(a, message, values);
+				if (m != null) {
+					match = m;
+					break;
+				}
+			}
+
+			return matchResult(topic, match);
+		}
+
+		/**
+		 * Look up the trigger that a match is for.
+		 *
+		 * @param topic The topic that was searched.
+		 * @param match The match, or null if nothing matched.
+		 */
+		private MatchCache.Result matchResult (String topic, TriggerMatch match) {
+			if (match == null) {
+				return MatchCache.Result.NONE;
+			}
+
+			com.rivescript.Topic current = topics.topic(topic);
+			String trigger = current.listCompiled()[match.index()].pattern();
+			say("The trigger matches! Star count: " + match.starCount());
+
+			String[] stars = new String [ match.starCount() ];
+			for (int s = 1; s <= stars.length; s++) {
+				stars[s - 1] = match.star(s);
+			}
+
+			// We found a match, but what if the trigger we matched belongs to
+			// an inherited topic? Check for that.
+			com.rivescript.Trigger matched;
+			if (current.triggerExists(trigger)) {
+				// No, the trigger does belong to us.
+				matched = current.trigger(trigger);
 			}
+			else {
+				say("Trigger doesn't exist under this topic, trying to find it!");
+				matched = this.topics.findTriggerByInheritance(topic, trigger, 0);
+			}
+
+			return new MatchCache.Result(trigger, matched, stars);
+		}
 
-			return reply;
+		/**
+		 * Build the match cache key for a message. Besides the topic and the
+		 * message, it has the current value of every tag in the topic's dynamic
+		 * triggers, so that a change to any of them misses the cache.
+		 *
+		 * @param profile The calling client profile.
+		 * @param topic   The name of the topic.
+		 * @param message The formatted message.
+		 */
+		private String matchCacheKey (Client profile, String topic, String message) {
+			StringBuilder key = new StringBuilder();
+			key.append(topic).append('\u0000').append(message);
+
+			com.rivescript.Topic current = topics.topic(topic);
+			CompiledTrigger[] triggers = current.listCompiled();
+			int[] dynamic = current.listDynamic();
+			for (int d = 0; d < dynamic.length; d++) {
+				String[] values = slotValues(profile, triggers[ dynamic[d] ].template());
+				for (int v = 0; v < values.length; v++) {
+					key.append('\u0000').append(values[v]);
+				}
+			}
+			return key.toString();
 		}
 
 		/**
-		 * Formats a trigger for the regular expression engine.
+		 * Formats a trigger for the regular expression engine, filling in any
+		 * tags that depend on the user's profile.
 		 *
-		 * @param client    the calling client profile
+		 * @param profile The calling client profile.
 		 * @param trigger The raw trigger text.
 		 */
 		private String triggerRegexp ( Client profile, String trigger) {
+			TriggerTemplate template = triggerTemplate(trigger);
+			return template.regexp(slotValues(profile, template));
+		}
+
+		/**
+		 * Work out the regexp of a trigger that depends on the user's profile,
+		 * leaving slots for the <bot>, <get>, <input> and <reply> tags.
+		 *
+		 * @param trigger The raw trigger text.
+		 */
+		private TriggerTemplate triggerTemplate (String trigger) {
+			Vector<Integer> types = new Vector<Integer>();
+			Vector<String>  names = new Vector<String>();
+			String text = TriggerTemplate.extract(trigger, types, names);
+			return TriggerTemplate.build(triggerRegexp(text), types, names);
+		}
+
+		/**
+		 * Look up the values for the slots of a trigger template. Values are
+		 * lowercased and stripped of anything but letters, numbers and spaces,
+		 * the same as a formatted message.
+		 *
+		 * @param profile  The calling client profile.
+		 * @param template The trigger template.
+		 */
+		private String[] slotValues (Client profile, TriggerTemplate template) {
+			String[] values = new String [ template.slots() ];
+			for (int i = 0; i < values.length; i++) {
+				String name = template.name(i);
+				String value;
+				switch (template.type(i)) {
+					case TriggerTemplate.BOT:
+						value = vars.containsKey(name) ? vars.get(name) : "undefined";
+						break;
+					case TriggerTemplate.GET:
+						value = profile.get(name);
+						break;
+					case TriggerTemplate.INPUT:
+						value = profile.getInput(Integer.parseInt(name));
+						break;
+					default:
+						value = profile.getReply(Integer.parseInt(name));
+						break;
+				}
+				values[i] = normalizer.normalize(value);
+			}
+			return values;
+		}
+
+		/**
+		 * Formats the static parts of a trigger for the regular expression engine.
+		 * Tags that depend on the user's profile are left in place.
+		 *
+		 * @param trigger The raw trigger text.
+		 */
+		private String triggerRegexp (String trigger) {
 			// If the trigger is simply '*', it needs to become (.*?) so it catches the empty string.
 			String regexp = trigger.replaceAll("^\\*$", "<zerowidthstar>");
 
@@ -663,387 +939,321 @@ public class RiveScriptEngine {
 				}
 			}
 
-			// Filter in bot variables.
-			if (regexp.indexOf("<bot") > -1) {
-				Pattern reBot = Pattern.compile("<bot (.+?)>");
-				Matcher mBot  = reBot.matcher(regexp);
-				while (mBot.find()) {
-					String tag = mBot.group(0);
-					String var = mBot.group(1);
-					String value = vars.get(var).toLowerCase().replace("[^a-z0-9 ]+","");
+			return regexp;
+		}
 
-					// Have this?
-					if (vars.containsKey(var)) {
-						regexp = regexp.replace(tag, value);
-					}
-					else {
-						regexp = regexp.replace(tag, "undefined");
-					}
-				}
+		/**
+		 * Process the tags of a parsed reply for a frame of reply(), or carry on
+		 * with the ones that were waiting on a {@...} tag. If they reach a
+		 * {@...} tag this returns null, and frame.follow is the frame for it;
+		 * once that has been run, calling this again gives the rest.
+		 *
+		 * @param profile  The RiveScript client object holding the user's profile
+		 * @param frame    The frame, with the wildcards its message matched.
+		 * @param template The bot's parsed reply.
+		 * @param step     The current recursion depth limit.
+		 */
+		private String processTags (Client profile, Frame frame, ReplyTemplate template, int step) {
+			// Replies without any tags need no work.
+			if (frame.evaluation == null && template.literal() != null) {
+				return template.literal();
 			}
+			return processTags(profile, frame, template.nodes(), template.order(), step);
+		}
 
-			// Filter in user variables.
-			if (regexp.indexOf("<get") > -1) {
-				Pattern reGet = Pattern.compile("<get (.+?)>");
-				Matcher mGet  = reGet.matcher(regexp);
-				while (mGet.find()) {
-					String tag = mGet.group(0);
-					String var = mGet.group(1);
-					String value = profile.get(var).toLowerCase().replaceAll("[^a-z0-9 ]+","");
-
-					// Have this?
-					regexp = regexp.replace(tag, value);
-				}
+		/**
+		 * Process a list of sibling nodes of a reply for a frame of reply(), as
+		 * above.
+		 *
+		 * @param profile  The RiveScript client object holding the user's profile
+		 * @param frame    The frame, with the wildcards its message matched.
+		 * @param nodes    The nodes.
+		 * @param order    The order to evaluate them in.
+		 * @param step     The current recursion depth limit.
+		 */
+		private String processTags (Client profile, Frame frame, ReplyTemplate.Node[] nodes, int[] order, int step) {
+			Evaluation evaluation = frame.evaluation;
+			String text;
+			if (evaluation == null) {
+				// Pad the stars (so <star1> is stars[1]), with a default first star.
+				evaluation = new Evaluation(nodes, order, profile, padStars(frame.stars), padStars(frame.botstars));
+				text = evaluation.run(null);
+			}
+			else {
+				text = evaluation.run(frame.answer);
 			}
 
-			// Input and reply tags.
-			regexp = regexp.replaceAll("<input>", "<input1>");
-			regexp = regexp.replaceAll("<reply>", "<reply1>");
-			if (regexp.indexOf("<input") > -1) {
-				Pattern reInput = Pattern.compile("<input([0-9])>");
-				Matcher mInput  = reInput.matcher(regexp);
-				while (mInput.find()) {
-					String tag   = mInput.group(0);
-					int    index = Integer.parseInt(mInput.group(1));
-					String text  = profile.getInput(index).toLowerCase().replaceAll("[^a-z0-9 ]+","");
-					regexp       = regexp.replace(tag, text);
-				}
+			if (text == null) {
+				// Do the reply redirect first; the depth limit still holds.
+				frame.evaluation = evaluation;
+				frame.follow = new Frame(evaluation.redirect, false, step + 1);
 			}
-			if (regexp.indexOf("<reply") > -1) {
-				Pattern reReply = Pattern.compile("<reply([0-9])>");
-				Matcher mReply  = reReply.matcher(regexp);
-				while (mReply.find()) {
-					String tag   = mReply.group(0);
-					int    index = Integer.parseInt(mReply.group(1));
-					String text  = profile.getReply(index).toLowerCase().replaceAll("[^a-z0-9 ]+","");
-					regexp       = regexp.replace(tag, text);
-				}
+			else {
+				frame.evaluation = null;
 			}
+			return text;
+		}
 
-			return regexp;
+		/**
+		 * Turn a vector of stars into an array indexed from 1. If there are no
+		 * stars, the first one is "undefined".
+		 */
+		private String[] padStars (Vector<String> vstars) {
+			String[] stars = new String [ Math.max(vstars.size(), 1) + 1 ];
+			stars[0] = "";
+			stars[1] = "undefined";
+			for (int i = 0; i < vstars.size(); i++) {
+				stars[i + 1] = (vstars.get(i) == null) ? "" : vstars.get(i);
+			}
+			return stars;
 		}
 
 		/**
-		 * Process reply tags.
+		 * Get the parsed tree of a reply. Replies, redirects and conditions that
+		 * were loaded before sortReplies() are parsed there; anything else (like
+		 * the output of the BEGIN block) is parsed now.
 		 *
-		 * @param user     The name of the end user.
-		 * @param profile  The RiveScript client object holding the user's profile
-		 * @param message  The message sent by the user.
-		 * @param reply    The bot's original reply including tags.
-		 * @param stars    The vector of wildcards the user's message matched.
-		 * @param botstars The vector of wildcards in any %Previous.
-		 * @param step     The current recursion depth limit.
+		 * @param reply The reply text.
 		 */
-		private String processTags ( Client profile, String message, String reply, Vector<String> vstars, Vector<String> vbotstars, int step) {
-			// Pad the stars.
-			vstars.add(0, "");
-			vbotstars.add(0, "");
-
-			// Set a default first star.
-			if (vstars.size() == 1) {
-				vstars.add("undefined");
-			}
-			if (vbotstars.size() == 1) {
-				vbotstars.add("undefined");
-			}
-
-			// Convert the stars into simple arrays.
-			String[] stars    = com.rivescript.Util.Sv2s(vstars);
-			String[] botstars = com.rivescript.Util.Sv2s(vbotstars);
-
-			// Shortcut tags.
-			reply = reply.replaceAll("<person>",    "{person}<star>{/person}");
-			reply = reply.replaceAll("<@>",         "{@<star>}");
-			reply = reply.replaceAll("<formal>",    "{formal}<star>{/formal}");
-			reply = reply.replaceAll("<sentence>",  "{sentence}<star>{/sentence}");
-			reply = reply.replaceAll("<uppercase>", "{uppercase}<star>{/uppercase}");
-			reply = reply.replaceAll("<lowercase>", "{lowercase}<star>{/lowercase}");
-
-			// Quick tags.
-			reply = reply.replaceAll("\\{weight=\\d+\\}", ""); // Remove {weight}s
-			reply = reply.replaceAll("<input>", "<input1>");
-			reply = reply.replaceAll("<reply>", "<reply1>");
-			reply = reply.replaceAll("<id>", profile.getId());
-			reply = reply.replaceAll("\\\\s", " ");
-			reply = reply.replaceAll("\\\\n", "\n");
-			reply = reply.replaceAll("\\\\", "\\");
-			reply = reply.replaceAll("\\#", "#");
-
-			// Stars
-			reply = reply.replaceAll("<star>", stars[1]);
-			reply = reply.replaceAll("<botstar>", botstars[1]);
-			for (int i = 1; i < stars.length; i++) {
-				reply = reply.replaceAll("<star" + i + ">", stars[i]);
-			}
-			for (int i = 1; i < botstars.length; i++) {
-				reply = reply.replaceAll("<botstar" + i + ">", botstars[i]);
-			}
-			reply = reply.replaceAll("<(star|botstar)\\d+>", "");
-
-			// Input and reply tags.
-			if (reply.indexOf("<input") > -1) {
-				Pattern reInput = Pattern.compile("<input([0-9])>");
-				Matcher mInput  = reInput.matcher(reply);
-				while (mInput.find()) {
-					String tag   = mInput.group(0);
-					int    index = Integer.parseInt(mInput.group(1));
-					String text  = profile.getInput(index).toLowerCase().replaceAll("[^a-z0-9 ]+","");
-					reply        = reply.replace(tag, text);
-				}
-			}
-			if (reply.indexOf("<reply") > -1) {
-				Pattern reReply = Pattern.compile("<reply([0-9])>");
-				Matcher mReply  = reReply.matcher(reply);
-				while (mReply.find()) {
-					String tag   = mReply.group(0);
-					int    index = Integer.parseInt(mReply.group(1));
-					String text  = profile.getReply(index).toLowerCase().replaceAll("[^a-z0-9 ]+","");
-					reply        = reply.replace(tag, text);
-				}
-			}
-
-			// {random} tag
-			if (reply.indexOf("{random}") > -1) {
-				Pattern reRandom = Pattern.compile("\\{random\\}(.+?)\\{\\/random\\}");
-				Matcher mRandom  = reRandom.matcher(reply);
-				while (mRandom.find()) {
-					String tag          = mRandom.group(0);
-					String[] candidates = mRandom.group(1).split("\\|");
-					String chosen = candidates [ rand.nextInt(candidates.length) ];
-					reply = reply.replace(tag, chosen);
-				}
-			}
-
-			// <bot> tag
-			if (reply.indexOf("<bot") > -1) {
-				Pattern reBot = Pattern.compile("<bot (.+?)>");
-				Matcher mBot  = reBot.matcher(reply);
-				while (mBot.find()) {
-					String tag = mBot.group(0);
-					String var = mBot.group(1);
+		private ReplyTemplate replyTemplate (String reply) {
+			ReplyTemplate template = replyTemplates.get(reply);
+			if (template == null) {
+				template = ReplyTemplate.parse(reply);
+			}
+			return template;
+		}
 
-					// Setting the variable?
-					if (var.indexOf("=") > -1) {
-						String[] parts = var.split("\\s*=\\s*", 2);
-						var = parts[0];
-						String val = parts[1];
-						this.setVariable(var, val);
-						reply = reply.replace(tag, "");
+		/**
+		 * The evaluation of the tags of a reply. Each list of sibling nodes
+		 * being evaluated is a level on a stack, so it can stop at a {@...} tag
+		 * while the frame loop in reply() follows it, and carry on from there
+		 * with its reply. Each node is evaluated in its phase (see
+		 * ReplyTemplate), and the results are joined in order.
+		 */
+		private class Evaluation {
+			private Client profile;
+			private String[] stars;                              // The stars, from 1
+			private String[] botstars;                           // The botstars, from 1
+			private Vector<Level> levels = new Vector<Level>(); // The lists of nodes being evaluated
+			private String redirect = null;                      // The {@...} tag it stopped at
+
+			Evaluation (ReplyTemplate.Node[] nodes, int[] order, Client profile, String[] stars, String[] botstars) {
+				this.profile  = profile;
+				this.stars    = stars;
+				this.botstars = botstars;
+				push(null, nodes, order);
+			}
+
+			/**
+			 * Evaluate the nodes until they're done or a {@...} tag is reached.
+			 *
+			 * @param reply The reply of the {@...} tag it stopped at last time.
+			 * @return The text, or null if it stopped at a {@...} tag.
+			 */
+			String run (String reply) {
+				if (redirect != null) {
+					redirect = null;
+					done(reply);
+				}
+
+				while (true) {
+					Level level = levels.lastElement();
+					if (level.next < level.order.length) {
+						ReplyTemplate.Node node = level.nodes[ level.order[level.next] ];
+						if (node.children != null) {
+							// The contents of tags that wrap other text come first.
+							push(node, node.children, node.order);
+						}
+						else if (!value(node, "")) {
+							return null;
+						}
 						continue;
 					}
 
-					// Have this?
-					if (vars.containsKey(var)) {
-						reply = reply.replace(tag, vars.get(var));
+					// All the nodes have their parts; join them.
+					StringBuilder text = new StringBuilder();
+					for (int i = 0; i < level.parts.length; i++) {
+						text.append(level.parts[i]);
 					}
-					else {
-						reply = reply.replace(tag, "undefined");
+					levels.remove(levels.size() - 1);
+					if (levels.isEmpty()) {
+						return text.toString();
+					}
+					if (!value(level.parent, text.toString())) {
+						return null;
 					}
 				}
 			}
 
-			// <env> tag
-			if (reply.indexOf("<env") > -1) {
-				Pattern reEnv = Pattern.compile("<env (.+?)>");
-				Matcher mEnv  = reEnv.matcher(reply);
-				while (mEnv.find()) {
-					String tag = mEnv.group(0);
-					String var = mEnv.group(1);
-
-					// Setting the variable?
-					if (var.indexOf("=") > -1) {
-						String[] parts = var.split("\\s*=\\s*", 2);
-						var = parts[0];
-						String val = parts[1];
-						this.setGlobal(var, val);
-						reply = reply.replace(tag, "");
-						continue;
-					}
+			/**
+			 * Start evaluating a list of sibling nodes.
+			 */
+			private void push (ReplyTemplate.Node parent, ReplyTemplate.Node[] nodes, int[] order) {
+				// Pick the {random} choices first; what they pick joins the siblings.
+				if (ReplyTemplate.hasRandom(nodes)) {
+					Vector<ReplyTemplate.Node> chosen = new Vector<ReplyTemplate.Node>();
+					chooseRandom(nodes, chosen);
+					nodes = chosen.toArray(new ReplyTemplate.Node [0]);
+					order = ReplyTemplate.order(nodes);
+				}
+				levels.add(new Level(parent, nodes, order));
+			}
 
-					// Have this?
-					if (globals.containsKey(var)) {
-						reply = reply.replace(tag, globals.get(var));
-					}
-					else {
-						reply = reply.replace(tag, "undefined");
-					}
+			/**
+			 * Evaluate the next node, given the text of its contents. Returns false
+			 * if it's a {@...} tag, which has to be followed first.
+			 */
+			private boolean value (ReplyTemplate.Node node, String text) {
+				if (node.type == ReplyTemplate.REDIRECT) {
+					redirect = text.trim();
+					return false;
 				}
+				done(evaluate(node, text, profile, stars, botstars));
+				return true;
 			}
 
-			// {!stream} tag
-			if (reply.indexOf("{!") > -1) {
-				Pattern reStream = Pattern.compile("\\{\\!(.+?)\\}");
-				Matcher mStream  = reStream.matcher(reply);
-				while (mStream.find()) {
-					String tag = mStream.group(0);
-					String code = mStream.group(1);
-					say("Stream new code in: " + code);
+			/**
+			 * Give the next node its part of the text.
+			 */
+			private void done (String part) {
+				Level level = levels.lastElement();
+				level.parts[ level.order[level.next] ] = part;
+				level.next++;
+			}
+		}
 
-					// Stream it.
-					this.stream(code);
-					reply = reply.replace(tag, "");
+		/**
+		 * A list of sibling nodes in an Evaluation.
+		 */
+		private static class Level {
+			ReplyTemplate.Node parent; // The node they're the contents of
+			ReplyTemplate.Node[] nodes;
+			int[] order;               // The order to evaluate them in
+			String[] parts;            // Their parts of the text
+			int next = 0;              // The next one to evaluate
+
+			Level (ReplyTemplate.Node parent, ReplyTemplate.Node[] nodes, int[] order) {
+				this.parent = parent;
+				this.nodes  = nodes;
+				this.order  = order;
+				this.parts  = new String [ nodes.length ];
+			}
+		}
+
+		/**
+		 * Replace each {random} tag in a list of nodes with the nodes of one of
+		 * its choices.
+		 */
+		private void chooseRandom (ReplyTemplate.Node[] nodes, Vector<ReplyTemplate.Node> chosen) {
+			for (int i = 0; i < nodes.length; i++) {
+				if (nodes[i].type == ReplyTemplate.RANDOM) {
+					ReplyTemplate.Node[][] choices = nodes[i].choices;
+					chooseRandom(choices[ rand.nextInt(choices.length) ], chosen);
+				}
+				else {
+					chosen.add(nodes[i]);
 				}
 			}
+		}
 
-			// {person}
-			if (reply.indexOf("{person}") > -1) {
-				Pattern rePerson = Pattern.compile("\\{person\\}(.+?)\\{\\/person\\}");
-				Matcher mPerson  = rePerson.matcher(reply);
-				while (mPerson.find()) {
-					String tag  = mPerson.group(0);
-					String text = mPerson.group(1);
+		/**
+		 * Evaluate one node of a reply, given the text of its contents. The
+		 * {@...} tag is left to Evaluation, since it needs a reply of its own.
+		 */
+		private String evaluate (ReplyTemplate.Node node, String text, Client profile, String[] stars, String[] botstars) {
+			switch (node.type) {
+				case ReplyTemplate.TEXT:
+					return node.text;
 
-					// Run person substitutions.
-					say("Run person substitutions: before: " + text);
-					text = com.rivescript.Util.substitute(person_s, person, text);
-					say("After: " + text);
-					reply = reply.replace(tag, text);
-				}
-			}
-
-			// {formal,uppercase,lowercase,sentence} tags
-			if (reply.indexOf("{formal}") > -1 || reply.indexOf("{sentence}") > -1 ||
-			reply.indexOf("{uppercase}") > -1 || reply.indexOf("{lowercase}") > -1) {
-				String[] tags = { "formal", "sentence", "uppercase", "lowercase" };
-				for (int i = 0; i < tags.length; i++) {
-					Pattern reTag = Pattern.compile("\\{" + tags[i] + "\\}(.+?)\\{\\/" + tags[i] + "\\}");
-					Matcher mTag  = reTag.matcher(reply);
-					while (mTag.find()) {
-						String tag  = mTag.group(0);
-						String text = mTag.group(1);
-
-						// String transform.
-						text = stringTransform(tags[i], text);
-						reply = reply.replace(tag, text);
-					}
-				}
-			}
-
-			// <set> tag
-			if (reply.indexOf("<set") > -1) {
-				Pattern reSet = Pattern.compile("<set (.+?)=(.+?)>");
-				Matcher mSet  = reSet.matcher(reply);
-				while (mSet.find()) {
-					String tag   = mSet.group(0);
-					String var   = mSet.group(1);
-					String value = mSet.group(2);
-
-					// Set the uservar.
-					profile.set(var, value);
-					reply = reply.replace(tag, "");
-					say("Set user var " + var + "=" + value);
-				}
-			}
-
-			// <add, sub, mult, div> tags
-			if (reply.indexOf("<add") > -1 || reply.indexOf("<sub") > -1 ||
-			reply.indexOf("<mult") > -1 || reply.indexOf("<div") > -1) {
-				String[] tags = { "add", "sub", "mult", "div" };
-				for (int i = 0; i < tags.length; i++) {
-					Pattern reTag = Pattern.compile("<" + tags[i] + " (.+?)=(.+?)>");
-					Matcher mTag  = reTag.matcher(reply);
-					while (mTag.find()) {
-						String tag   = mTag.group(0);
-						String var   = mTag.group(1);
-						String value = mTag.group(2);
-
-						// Get the user var.
-						String curvalue = profile.get(var);
-						int current = 0;
-						if (!curvalue.equals("undefined")) {
-							// Convert it to a int.
-							try {
-								current = Integer.parseInt(curvalue);
-							} catch (NumberFormatException e) {
-								// Current value isn't a number!
-								reply = reply.replace(tag, "[ERR: Can't \"" + tags[i] + "\" non-numeric variable " + var + "]");
-								continue;
-							}
-						}
+				case ReplyTemplate.STAR:
+					return (node.index < stars.length) ? stars[node.index] : "";
 
-						// Value must be a number too.
-						int modifier = 0;
-						try {
-							modifier = Integer.parseInt(value);
-						} catch (NumberFormatException e) {
-							reply = reply.replace(tag, "[ERR: Can't \"" + tags[i] + "\" non-numeric value " + value + "]");
-							continue;
-						}
+				case ReplyTemplate.BOTSTAR:
+					return (node.index < botstars.length) ? botstars[node.index] : "";
 
-						// Run the operation.
-						if (tags[i].equals("add")) {
-							current += modifier;
-						}
-						else if (tags[i].equals("sub")) {
-							current -= modifier;
-						}
-						else if (tags[i].equals("mult")) {
-							current *= modifier;
+				case ReplyTemplate.ID:
+					return profile.getId();
+
+				case ReplyTemplate.INPUT:
+					return normalizer.normalize(profile.getInput(node.index));
+
+				case ReplyTemplate.REPLY:
+					return normalizer.normalize(profile.getReply(node.index));
+
+				case ReplyTemplate.BOT:
+				case ReplyTemplate.ENV: {
+					HashMap<String, String> map = (node.type == ReplyTemplate.BOT) ? vars : globals;
+
+					// Setting the variable?
+					if (text.indexOf("=") > -1) {
+						String[] parts = text.split("\\s*=\\s*", 2);
+						if (node.type == ReplyTemplate.BOT) {
+							this.setVariable(parts[0], parts[1]);
 						}
 						else {
-							// Don't divide by zero.
-							if (modifier == 0) {
-								reply = reply.replace(tag, "[ERR: Can't divide by zero!]");
-								continue;
-							}
-							current /= modifier;
+							this.setGlobal(parts[0], parts[1]);
 						}
+						return "";
+					}
 
-						// Store the new value.
-						profile.set(var, Integer.toString(current));
-						reply = reply.replace(tag, "");
+					// Have this?
+					if (map.containsKey(text)) {
+						return map.get(text);
 					}
+					return "undefined";
 				}
-			}
 
-			// <get> tag
-			if (reply.indexOf("<get") > -1) {
-				Pattern reGet = Pattern.compile("<get (.+?)>");
-				Matcher mGet  = reGet.matcher(reply);
-				while (mGet.find()) {
-					String tag = mGet.group(0);
-					String var = mGet.group(1);
+				case ReplyTemplate.STREAM:
+					say("Stream new code in: " + text);
+					this.stream(text);
+					return "";
 
-					// Get the user var.
-					reply = reply.replace(tag, profile.get(var));
-				}
-			}
-
-			// {topic} tag
-			if (reply.indexOf("{topic=") > -1) {
-				Pattern reTopic = Pattern.compile("\\{topic=(.+?)\\}");
-				Matcher mTopic  = reTopic.matcher(reply);
-				while (mTopic.find()) {
-					String tag   = mTopic.group(0);
-					String topic = mTopic.group(1);
-					say("Set user's topic to: " + topic);
-					profile.set("topic", topic);
-					reply = reply.replace(tag, "");
+				case ReplyTemplate.PERSON:
+					// Run person substitutions.
+					say("Run person substitutions: before: " + text);
+					text = personSubstitutor().substitute(text);
+					say("After: " + text);
+					return text;
+
+				case ReplyTemplate.FORMAL:
+				case ReplyTemplate.SENTENCE:
+				case ReplyTemplate.UPPERCASE:
+				case ReplyTemplate.LOWERCASE:
+					return StringTransform.transform(ReplyTemplate.format(node.type), text);
+
+				case ReplyTemplate.SET:
+				case ReplyTemplate.ADD:
+				case ReplyTemplate.SUB:
+				case ReplyTemplate.MULT:
+				case ReplyTemplate.DIV: {
+					int equals = text.indexOf("=");
+					if (equals < 1 || equals == text.length() - 1) {
+						// Not a name=value pair, so not really a tag.
+						String[] names = { "set", "add", "sub", "mult", "div" };
+						return "<" + names[ node.type - ReplyTemplate.SET ] + " " + text + ">";
+					}
+					String var   = text.substring(0, equals);
+					String value = text.substring(equals + 1);
+					if (node.type == ReplyTemplate.SET) {
+						// Set the uservar.
+						profile.set(var, value);
+						say("Set user var " + var + "=" + value);
+						return "";
+					}
+					return math(node.type, profile, var, value);
 				}
-			}
 
-			// {@redirect} tag
-			if (reply.indexOf("{@") > -1) {
-				Pattern reRed = Pattern.compile("\\{@([^\\}]*?)\\}");
-				Matcher mRed  = reRed.matcher(reply);
-				while (mRed.find()) {
-					String tag    = mRed.group(0);
-					String target = mRed.group(1).trim();
+				case ReplyTemplate.GET:
+					// Get the user var.
+					return profile.get(text);
 
-					// Do the reply redirect.
-					String subreply = this.reply(profile, target, false, step+1);
-					reply = reply.replace(tag, subreply);
-				}
-			}
+				case ReplyTemplate.TOPIC:
+					say("Set user's topic to: " + text);
+					profile.set("topic", text);
+					return "";
 
-			// <call> tag
-			if (reply.indexOf("<call>") > -1) {
-				Pattern reCall = Pattern.compile("<call>(.+?)<\\/call>");
-				Matcher mCall  = reCall.matcher(reply);
-				while (mCall.find()) {
-					String tag = mCall.group(0);
-					String data = mCall.group(1);
-					String[] parts = data.split(" ");
+				case ReplyTemplate.CALL: {
+					String[] parts = text.split(" ");
 					String name = parts[0];
 					Vector<String> args = new Vector<String>();
 					for (int i = 1; i < parts.length; i++) {
@@ -1054,76 +1264,114 @@ public class RiveScriptEngine {
 					if (objects.containsKey(name)) {
 						// What language handles it?
 						String lang = objects.get(name);
-						String result = handlers.get(lang).onCall(name, profile, Util.Sv2s(args));
-						reply = reply.replace(tag, result);
-					}
-					else {
-						reply = reply.replace(tag, "[ERR: Object Not Found]");
+						return handlers.get(lang).onCall(name, profile, Util.Sv2s(args));
 					}
+					return "[ERR: Object Not Found]";
 				}
 			}
-
-			return reply;
+			return "";
 		}
 
 		/**
-		 * Reformats a string in a certain way: formal, uppercase, lowercase, sentence.
+		 * Run one of the math tags (<add>, <sub>, <mult> or <div>) on a user
+		 * variable.
 		 *
-		 * @param format The format you want the string in.
-		 * @param text   The text to format.
+		 * @param type    The node type of the tag.
+		 * @param profile The calling client profile.
+		 * @param var     The name of the variable.
+		 * @param value   The number to add, subtract, multiply or divide by.
+		 * @return The text the tag is replaced with (empty, or an error).
 		 */
-		private String stringTransform (String format, String text) {
-			if (format.equals("uppercase")) {
-				return text.toUpperCase();
+		private String math (int type, Client profile, String var, String value) {
+			String[] names = { "add", "sub", "mult", "div" };
+			String tag = names[ type - ReplyTemplate.ADD ];
+
+			// Get the user var.
+			String curvalue = profile.get(var);
+			int current = 0;
+			if (!curvalue.equals("undefined")) {
+				// Convert it to a int.
+				try {
+					current = Integer.parseInt(curvalue);
+				} catch (NumberFormatException e) {
+					// Current value isn't a number!
+					return "[ERR: Can't \"" + tag + "\" non-numeric variable " + var + "]";
+				}
+			}
+
+			// Value must be a number too.
+			int modifier = 0;
+			try {
+				modifier = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				return "[ERR: Can't \"" + tag + "\" non-numeric value " + value + "]";
 			}
-			else if (format.equals("lowercase")) {
-				return text.toLowerCase();
+
+			// Run the operation.
+			if (type == ReplyTemplate.ADD) {
+				current += modifier;
 			}
-			else if (format.equals("formal")) {
-				// Capitalize Each First Letter
-				String[] words = text.split(" ");
-				say("wc: " + words.length);
-				for (int i = 0; i < words.length; i++) {
-					say("word: " + words[i]);
-					String[] letters = words[i].split("");
-					say("cc: " + letters.length);
-					if (letters.length > 1) {
-						letters[0] = letters[0].toUpperCase();
-						words[i] = com.rivescript.Util.join(letters, "");
-						say("new word: " + words[i]);
-					}
-				}
-				return Util.join(words, " ");	
+			else if (type == ReplyTemplate.SUB) {
+				current -= modifier;
 			}
-			else if (format.equals("sentence")) {
-				// Uppercase the first letter of the first word.
-				String[] letters = text.split("");
-				if (letters.length > 1) {
-					letters[0] = letters[0].toUpperCase();
-				}
-				return com.rivescript.Util.join(letters, "");
+			else if (type == ReplyTemplate.MULT) {
+				current *= modifier;
 			}
 			else {
-				return "[ERR: Unknown String Transform " + format + "]";
+				// Don't divide by zero.
+				if (modifier == 0) {
+					return "[ERR: Can't divide by zero!]";
+				}
+				current /= modifier;
 			}
+
+			// Store the new value.
+			profile.set(var, Integer.toString(current));
+			return "";
 		}
 
 		/**
 		 * Format the user's message to begin reply matching. Lowercases it, runs substitutions,
-		 * and neutralizes what's left.
+		 * and neutralizes what's left (see MessageNormalizer).
 		 *
 		 * @param message The input message to format.
 		 */
 		private String formatMessage (String message) {
-			// Lowercase it first.
-			message = message.toLowerCase();
+			return normalizer.normalize(message, substitutor());
+		}
 
-			// Run substitutions.
-			message = com.rivescript.Util.substitute(subs_s, subs, message);
+		/**
+		 * Format one of the bot's replies the way reply() formats messages, for
+		 * matching it against a %Previous. Clients can store this next to the
+		 * reply in their history (see Client.addReply(String, String)), so it
+		 * only has to be done once.
+		 *
+		 * @param reply The bot's reply.
+		 */
+		public String formatReply (String reply) {
+			return formatMessage(reply);
+		}
 
-			// Sanitize what's left.
-			message = message.replaceAll("[^a-z0-9 ]", "");
-			return message;
+		/**
+		 * Get the substitutions (! sub), built when the replies are sorted or
+		 * after they change.
+		 */
+		private Substitutor substitutor () {
+			if (subber == null) {
+				subber = new Substitutor(subs);
+			}
+			return subber;
+		}
+
+		/**
+		 * Get the person substitutions (! person), built when the replies are
+		 * sorted or after they change.
+		 */
+		private Substitutor personSubstitutor () {
+			if (personSubber == null) {
+				personSubber = new Substitutor(person);
+			}
+			return personSubber;
 		}
 
 		
@@ -1145,31 +1393,83 @@ public class RiveScriptEngine {
 			// Get a directory handle.
 			File dh = new File(path);
 
-			// Search it for files.
-			for (int i = 0; i < exts.length; i++) {
-				// Search the directory for files of this type.
-				say("Searching for files of type: " + exts[i]);
-				final String type = exts[i];
-				String[] files = dh.list(new FilenameFilter() {
-					public boolean accept (File d, String name) {
-						return name.endsWith(type);
+			// Search the directory for files of any of the types, in order of
+			// their names (whatever their type).
+			say("Searching for files of type: " + Arrays.toString(exts));
+			final String[] types = exts;
+			String[] found = dh.list(new FilenameFilter() {
+				public boolean accept (File d, String name) {
+					for (int i = 0; i < types.length; i++) {
+						if (name.endsWith(types[i])) {
+							return true;
+						}
 					}
-				});
+					return false;
+				}
+			});
+
+			// No results?
+			if (found == null) {
+				return error("Couldn't read any files from directory " + path);
+			}
 
-				// No results?
-				if (files == null) {
-					return error("Couldn't read any files from directory " + path);
+			Arrays.sort(found);
+			Vector<String> files = new Vector<String>();
+			for (int i = 0; i < found.length; i++) {
+				files.add(path + "/" + found[i]);
+			}
+
+			// Parse each file.
+			if (loadExecutor == null) {
+				for (int i = 0; i < files.size(); i++) {
+					loadFile(files.get(i));
 				}
+				return true;
+			}
 
-				// Parse each file.
-				for (int j = 0; j < files.length; j++) {
-					loadFile(path + "/" + files[j]);
+			// Parse them all on the executor, and add them to the bot in order
+			// as they're ready. The parsers get their own copy of the languages
+			// with handlers, since the handlers can change on this thread.
+			final HashSet<String> languages = languages();
+			Vector<FutureTask<Document>> tasks = new Vector<FutureTask<Document>>();
+			for (int i = 0; i < files.size(); i++) {
+				final String file = files.get(i);
+				FutureTask<Document> task = new FutureTask<Document>(new Callable<Document>() {
+					public Document call () {
+						return readFile(file, languages);
+					}
+				});
+				tasks.add(task);
+				loadExecutor.execute(task);
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				say("Load file: " + files.get(i));
+				try {
+					merge(tasks.get(i).get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					cancel(tasks);
+					return error(files.get(i) + ": interrupted while reading.");
+				} catch (ExecutionException e) {
+					cancel(tasks);
+					return error(files.get(i) + ": " + e.getCause() + " while reading.");
 				}
 			}
 
 			return true;
 		}
 
+		/**
+		 * Stop the files that are still being read for loadDirectory().
+		 *
+		 * @param tasks The tasks reading the files.
+		 */
+		private void cancel (Vector<FutureTask<Document>> tasks) {
+			for (int i = 0; i < tasks.size(); i++) {
+				tasks.get(i).cancel(true);
+			}
+		}
+
 		/**
 		 * Load a directory full of RiveScript documents (.rive files).
 		 *
@@ -1187,52 +1487,65 @@ public class RiveScriptEngine {
 		 */
 		public boolean loadFile (String file) {
 			say("Load file: " + file);
+			return merge(readFile(file, languages()));
+		}
+
+		/**
+		 * Get the programming languages there are object handlers for.
+		 */
+		private HashSet<String> languages () {
+			return new HashSet<String>(handlers.keySet());
+		}
+
+		/**
+		 * Read and parse a RiveScript document, without adding it to the bot
+		 * (so this can run on any thread).
+		 *
+		 * @param file      Path to a RiveScript document.
+		 * @param languages The programming languages there are object handlers for.
+		 */
+		private Document readFile (String file, HashSet<String> languages) {
+			Document document = new Document(file);
 
 			// Create a file handle.
 			File fh = new File(file);
 
 			// Run some sanity checks on the file handle.
 			if (fh.exists() == false) {
-				return error(file + ": file not found.");
+				document.error = file + ": file not found.";
+				return document;
 			}
 			if (fh.isFile() == false) {
-				return error(file + ": not a regular file.");
+				document.error = file + ": not a regular file.";
+				return document;
 			}
 			if (fh.canRead() == false) {
-				return error(file + ": can't read from file.");
+				document.error = file + ": can't read from file.";
+				return document;
 			}
 
-			// Slurp the file's contents.
-			Vector<String> lines = new Vector<String>();
-
+			// Send the file's contents to the parser as they're read.
+			BufferedReader br = null;
 			try {
-				FileInputStream fis = new FileInputStream(fh);
-
-				// Using buffered input stream for fast reading.
-				DataInputStream dis = new DataInputStream(fis);
-				BufferedReader  br  = new BufferedReader(new InputStreamReader(dis));
-
-				// Read all the lines.
-				String line;
-				while ((line = br.readLine()) != null) {
-					lines.add((String) line);
-				}
-
-				// Dispose of the resources we don't need anymore.
-				dis.close();
+				br = new BufferedReader(new InputStreamReader(new FileInputStream(fh)));
+				parse(document, br, languages);
 			} catch (FileNotFoundException e) {
 				// How did this happen? We checked it earlier.
-				return error(file + ": file not found exception.");
+				document.error = file + ": file not found exception.";
 			} catch (IOException e) {
 				trace(e);
-				return error(file + ": IOException while reading.");
+				document.error = file + ": IOException while reading.";
+			} finally {
+				// Dispose of the resources we don't need anymore.
+				if (br != null) {
+					try {
+						br.close();
+					} catch (IOException e) {
+						trace(e);
+					}
+				}
 			}
-
-			// Convert the vector into a string array.
-			String[] code = com.rivescript.Util.Sv2s (lines);
-
-			// Send the code to the parser.
-			return parse (file, code);
+			return document;
 		}
 
 		/**
@@ -1259,6 +1572,22 @@ public class RiveScriptEngine {
 			// The coder has already broken the lines for us!
 			return parse("(streamed)", code);
 		}
+
+		/**
+		 * Stream some RiveScript code directly into the interpreter from a reader,
+		 * which is read to the end (but not closed).
+		 *
+		 * @param code A reader of the RiveScript code.
+		 */
+		public boolean stream (Reader code) {
+			try {
+				BufferedReader br = (code instanceof BufferedReader) ? (BufferedReader) code : new BufferedReader(code);
+				return parse("(streamed)", br);
+			} catch (IOException e) {
+				trace(e);
+				return error("(streamed): IOException while reading.");
+			}
+		}
 		
 		/*---------------------*/
 		/*-- Parsing Methods --*/
@@ -1271,26 +1600,351 @@ public class RiveScriptEngine {
 		 * @param code     A string array of all the code to parse.
 		 */
 		protected boolean parse (String filename, String[] code) {
-			// Track some state variables for this parsing round.
-			String topic            = "random"; // Default topic = random
-			int lineno              = 0;
-			boolean comment         = false; // In a multi-line comment
-			boolean inobj           = false; // In an object
-			String objName          = "";    // Name of the current object
-			String objLang          = "";    // Programming language of the object
-			Vector<String> objBuff  = null;  // Buffer for the current object
-			String onTrig           = "";    // Trigger we're on
-			String lastcmd          = "";    // Last command code
-			String isThat           = "";    // Is a %Previous trigger
+			Document document = new Document(filename);
+			Parser parser = new Parser(document, languages());
+			document.complete = false;
+			for (int i = 0; i < code.length; i++) {
+				if (!parser.line(code[i])) {
+					return merge(document);
+				}
+			}
+			document.complete = parser.finish();
+			return merge(document);
+		}
+
+		/**
+		 * Parse RiveScript code from a reader, one line at a time, and load it
+		 * into internal memory.
+		 *
+		 * @param filename A file name to associate with this code (for error reporting)
+		 * @param reader   Where to read the code from.
+		 * @throws IOException if reading fails.
+		 */
+		protected boolean parse (String filename, BufferedReader reader) throws IOException {
+			Document document = new Document(filename);
+			parse(document, reader, languages());
+			return merge(document);
+		}
+
+		/**
+		 * Parse RiveScript code from a reader into a document.
+		 *
+		 * @param document  The document to parse into.
+		 * @param reader    Where to read the code from.
+		 * @param languages The programming languages there are object handlers for.
+		 * @throws IOException if reading fails.
+		 */
+		private void parse (Document document, BufferedReader reader, HashSet<String> languages) throws IOException {
+			Parser parser = new Parser(document, languages);
+			document.complete = false;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!parser.line(line)) {
+					return;
+				}
+			}
+			document.complete = parser.finish();
+		}
+
+		/**
+		 * Add a parsed document to the bot: its definitions and objects in the
+		 * order they were found (with the warnings found along the way), then
+		 * its triggers.
+		 *
+		 * @param document The parsed document.
+		 */
+		private boolean merge (Document document) {
+			// New replies change what the cached matches point to.
+			forgetMatches();
+			forgetReplies();
+			subber = null;
+			personSubber = null;
+
+			for (int i = 0; i < document.entries.size(); i++) {
+				Document.Entry entry = document.entries.get(i);
+				if (entry.type == Document.WARNING) {
+					cry(entry.name, document.filename, entry.lineno);
+				}
+				else if (entry.type == Document.DEFINE) {
+					define(entry.kind, entry.name, entry.value, entry.lines);
+				}
+				else if (handlers.containsKey(entry.kind)) {
+					// An object: call the handler's onLoad function.
+					handlers.get(entry.kind).onLoad(entry.name, com.rivescript.Util.Sv2s(entry.lines));
+
+					// Map the name to the language.
+					objects.put(entry.name, entry.kind);
+				}
+			}
+			topics.merge(document.topics);
+
+			if (document.error != null) {
+				return error(document.error);
+			}
+			return document.complete;
+		}
+
+		/**
+		 * Set a global, bot variable, array or substitution from a !Definition.
+		 *
+		 * @param type  The type of definition.
+		 * @param var   The variable name.
+		 * @param value The value, or "<undef>" to delete it.
+		 * @param items The items of an array.
+		 */
+		private void define (String type, String var, String value, Vector<String> items) {
+			if (type.equals("global")) {
+				// Is it a special global? (debug or depth or etc).
+				say("\tSet global " + var + " = " + value);
+				setGlobal(var, value);
+			}
+			else if (type.equals("var")) {
+				// Set a bot variable.
+				say("\tSet bot variable " + var + " = " + value);
+				setVariable(var, value);
+			}
+			else if (type.equals("array")) {
+				// Set an array, or delete it.
+				say("\tSet array " + var);
+				if (value.equals("<undef>")) {
+					arrays.remove(var);
+				}
+				else {
+					arrays.put(var, items);
+				}
+			}
+			else if (type.equals("sub")) {
+				// Set a substitution.
+				say("\tSubstitution " + var + " => " + value);
+				setSubstitution(var, value);
+			}
+			else if (type.equals("person")) {
+				// Set a person substitution.
+				say("\tPerson substitution " + var + " => " + value);
+				setPersonSubstitution(var, value);
+			}
+		}
+
+		/**
+		 * What one document parses to, before it's added to the bot: its
+		 * triggers in a topic manager of its own, and its definitions, objects
+		 * and warnings in the order they were found. Documents can be parsed on
+		 * any thread, since only merge() changes the bot.
+		 */
+		private static class Document {
+			// Types of entries.
+			static final int WARNING = 0; // A warning about a line
+			static final int DEFINE  = 1; // A !Definition
+			static final int OBJECT  = 2; // An object macro
+
+			static class Entry {
+				int type;
+				String kind;          // Type of definition, or language of object
+				String name;          // Variable or object name, or warning text
+				String value;         // Value of definition
+				Vector<String> lines; // Items of array, or code of object
+				int lineno;           // Line number of warning
+			}
+
+			final String filename;
+			final com.rivescript.TopicManager topics = new com.rivescript.TopicManager();
+			final Vector<Entry> entries = new Vector<Entry>();
+			boolean complete = true; // Whether the parser got to the end
+			String error     = null; // Why it couldn't be read, if it couldn't
+
+			Document (String filename) {
+				this.filename = filename;
+			}
+
+			void add (int type, String kind, String name, String value, Vector<String> lines, int lineno) {
+				Entry entry  = new Entry();
+				entry.type   = type;
+				entry.kind   = kind;
+				entry.name   = name;
+				entry.value  = value;
+				entry.lines  = lines;
+				entry.lineno = lineno;
+				entries.add(entry);
+			}
+		}
+
+		/**
+		 * The state of one parsing round, fed one line at a time.<p>
+		 *
+		 * A command can be continued by the ^ lines after it (and a +Trigger can
+		 * be followed by a %Previous), so each command is held back until the
+		 * first line that can't belong to it. Only that command and the lines
+		 * that followed it are kept in memory, and each line is looked at once.
+		 */
+		private class Parser {
+			private final Document document;          // Where the code goes
+			private final String filename;            // For error reporting
+			private final HashSet<String> languages;  // The languages with object handlers
+			private String topic            = "random"; // Default topic = random
+			private int lineno              = 0;
+			private boolean comment         = false; // In a multi-line comment
+			private boolean inobj           = false; // In an object
+			private String objName          = "";    // Name of the current object
+			private String objLang          = "";    // Programming language of the object
+			private Vector<String> objBuff  = null;  // Buffer for the current object
+			private String onTrig           = "";    // Trigger we're on
+			private String isThat           = "";    // Is a %Previous trigger
 
 			// File scoped parser options.
-			HashMap<String, String> local_options = new HashMap<String, String>();
-			local_options.put("concat", "none");
+			private HashMap<String, String> local_options = new HashMap<String, String>();
+
+			// The command waiting for its continuations (null if none), and the
+			// lines read since.
+			private String pendingCmd           = null;
+			private StringBuilder pendingLine   = new StringBuilder();
+			private int pendingLineno           = 0;
+			private Vector<String> pendingLines = new Vector<String>();
+
+			Parser (Document document, HashSet<String> languages) {
+				this.document  = document;
+				this.filename  = document.filename;
+				this.languages = languages;
+				local_options.put("concat", "none");
+			}
 
-			// The given "code" is an array of lines, so jump right in.
-			for (int i = 0; i < code.length; i++) {
+			/**
+			 * Parse the next line of code. Returns false if parsing has to stop.
+			 *
+			 * @param code The line.
+			 */
+			boolean line (String code) {
 				lineno++; // Increment the line counter.
-				String line = code[i];
+
+				if (pendingCmd != null) {
+					if (continues(code.trim())) {
+						pendingLines.add(code);
+						return true;
+					}
+					if (!flush()) {
+						return false;
+					}
+				}
+				return handle(code);
+			}
+
+			/**
+			 * Finish parsing, running the last command. Returns false if
+			 * parsing stopped early.
+			 */
+			boolean finish () {
+				if (pendingCmd != null) {
+					return flush();
+				}
+				return true;
+			}
+
+			/**
+			 * See if a line belongs to the waiting command: a ^Continue (or a
+			 * %Previous, for a +Trigger) or a line with no data on it. The
+			 * continuations are added to the command as they come.
+			 *
+			 * @param peek The trimmed line.
+			 */
+			private boolean continues (String peek) {
+				// Skip blank.
+				if (peek.length() == 0) {
+					return true;
+				}
+
+				// Get the command.
+				String peekCmd = peek.substring(0,1);
+				peek           = peek.substring(1).trim();
+
+				// Only lines with data can end the command.
+				if (peek.length() == 0) {
+					return true;
+				}
+
+				// The next command has to be a % or a ^
+				if (peekCmd.equals(CMD_CONTINUE) == false && peekCmd.equals(CMD_PREVIOUS) == false) {
+					return false;
+				}
+
+				// If the current command is a +, see if the following is a %.
+				String cmd = pendingCmd;
+				if (cmd.equals(CMD_TRIGGER)) {
+					if (peekCmd.equals(CMD_PREVIOUS)) {
+						// It has a %Previous!
+						isThat = peek;
+						return false;
+					}
+					else {
+						isThat = "";
+					}
+				}
+
+				// If the current command is a ! and the next command(s) are
+				// ^, we'll tack each extension on as a "line break".
+				if (cmd.equals(CMD_DEFINE)) {
+					if (peekCmd.equals(CMD_CONTINUE)) {
+						pendingLine.append("<crlf>").append(peek);
+					}
+					return true;
+				}
+
+				// If the line after is not a %, but IS a ^, then tack it onto
+				// the end of the current line.
+				if (peekCmd.equals(CMD_CONTINUE)) {
+					// Concatenation character?
+					String concat = "";
+					if (local_options.get("concat").equals("space")) {
+						concat = " ";
+					}
+					else if (local_options.get("concat").equals("newline")) {
+						concat = "\n";
+					}
+					pendingLine.append(concat).append(peek);
+					return true;
+				}
+				return false;
+			}
+
+			/**
+			 * Keep a warning about a line, to be shown when the document is
+			 * added.
+			 *
+			 * @param text   The warning text.
+			 * @param lineno The line number.
+			 */
+			private void warn (String text, int lineno) {
+				document.add(Document.WARNING, null, text, null, null, lineno);
+			}
+
+			/**
+			 * Run the waiting command, then the lines that came after it (which
+			 * may turn out to be object code).
+			 */
+			private boolean flush () {
+				String cmd  = pendingCmd;
+				String line = pendingLine.toString();
+				pendingCmd = null;
+				pendingLine.setLength(0);
+				if (!command(cmd, line, pendingLineno)) {
+					return false;
+				}
+
+				String[] lines = com.rivescript.Util.Sv2s(pendingLines);
+				pendingLines.clear();
+				for (int i = 0; i < lines.length; i++) {
+					handle(lines[i]);
+				}
+				return true;
+			}
+
+			/**
+			 * Handle a line that doesn't belong to a waiting command: object
+			 * code, comments and blank lines are dealt with here, and a new
+			 * command is held back for its continuations.
+			 *
+			 * @param code The line.
+			 */
+			private boolean handle (String code) {
+				String line = code;
 				say("Line: " + line);
 
 				// Trim the line of whitespaces.
@@ -1299,25 +1953,19 @@ public class RiveScriptEngine {
 				// Are we inside an object?
 				if (inobj) {
 					if (line.startsWith("<object") || line.startsWith("< object")) { // TODO regexp
-						// End of the object. Did we have a handler?
-						if (handlers.containsKey(objLang)) {
-							// Yes, call the handler's onLoad function.
-							handlers.get(objLang).onLoad(objName, com.rivescript.Util.Sv2s(objBuff));
-
-							// Map the name to the language.
-							objects.put(objName, objLang);
-						}
+						// End of the object; it's loaded when the document is added.
+						document.add(Document.OBJECT, objLang, objName, null, objBuff, 0);
 
 						objName = "";
 						objLang = "";
 						objBuff = null;
 						inobj   = false;
-						continue;
+						return true;
 					}
 
 					// Collect the code.
 					objBuff.add(line);
-					continue;
+					return true;
 				}
 
 				// Look for comments.
@@ -1325,26 +1973,26 @@ public class RiveScriptEngine {
 					// Beginning a multi-line comment.
 					if (line.indexOf("*/") > -1) {
 						// It ends on the same line.
-						continue;
+						return true;
 					}
 					comment = true;
 				}
 				else if (line.startsWith("/")) {
 					// A single line comment.
-					continue;
+					return true;
 				}
 				else if (line.indexOf("*/") > -1) {
 					// End a multi-line comment.
 					comment = false;
-					continue;
+					return true;
 				}
 				if (comment) {
-					continue;
+					return true;
 				}
 
 				// Skip any blank lines.
 				if (line.length() < 2) {
-					continue;
+					return true;
 				}
 
 				// Separate the command from the rest of the line.
@@ -1363,69 +2011,26 @@ public class RiveScriptEngine {
 					isThat = "";
 				}
 
-				// Do a look-ahead to see ^Continue and %Previous.
-				for (int j = (i + 1); j < code.length; j++) {
-					// Peek ahead.
-					String peek = code[j].trim();
-
-					// Skip blank.
-					if (peek.length() == 0) {
-						continue;
-					}
-
-					// Get the command.
-					String peekCmd = peek.substring(0,1);
-					peek           = peek.substring(1).trim();
-
-					// Only continue if the lookahead line has any data.
-					if (peek.length() > 0) {
-						// The lookahead command has to be a % or a ^
-						if (peekCmd.equals(CMD_CONTINUE) == false && peekCmd.equals(CMD_PREVIOUS) == false) {
-							break;
-						}
-
-						// If the current command is a +, see if the following is a %.
-						if (cmd.equals(CMD_TRIGGER)) {
-							if (peekCmd.equals(CMD_PREVIOUS)) {
-								// It has a %Previous!
-								isThat = peek;
-								break;
-							}
-							else {
-								isThat = "";
-							}
-						}
-
-						// If the current command is a ! and the next command(s) are
-						// ^, we'll tack each extension on as a "line break".
-						if (cmd.equals(CMD_DEFINE)) {
-							if (peekCmd.equals(CMD_CONTINUE)) {
-								line += "<crlf>" + peek;
-							}
-						}
-
-						// If the current command is not a ^ and the line after is
-						// not a %, but the line after IS a ^, then tack it onto the
-						// end of the current line.
-						if (cmd.equals(CMD_CONTINUE) == false && cmd.equals(CMD_PREVIOUS) == false && cmd.equals(CMD_DEFINE) == false) {
-							if (peekCmd.equals(CMD_CONTINUE)) {
-								// Concatenation character?
-								String concat = "";
-								if (local_options.get("concat").equals("space")) {
-									concat = " ";
-								}
-								else if (local_options.get("concat").equals("newline")) {
-									concat = "\n";
-								}
-								line += concat + peek;
-							}
-							else {
-								break;
-							}
-						}
-					}
+				// ^Continue and %Previous lines were read by the command before them.
+				if (cmd.equals(CMD_CONTINUE) || cmd.equals(CMD_PREVIOUS)) {
+					return true;
 				}
 
+				// Wait for this command's continuations.
+				pendingCmd    = cmd;
+				pendingLineno = lineno;
+				pendingLine.append(line);
+				return true;
+			}
+
+			/**
+			 * Run a command, with its continuations added.
+			 *
+			 * @param cmd    The command symbol.
+			 * @param line   The rest of the command.
+			 * @param lineno The line it was on.
+			 */
+			private boolean command (String cmd, String line, int lineno) {
 				// Start handling command types.
 				if (cmd.equals(CMD_DEFINE)) {
 					say("\t! DEFINE");
@@ -1434,7 +2039,6 @@ public class RiveScriptEngine {
 					String type     = left[0];
 					String var      = "";
 					String value    = "";
-					boolean delete  = false;
 					if (left.length == 2)	{
 						var = left[1].trim().toLowerCase();
 					}
@@ -1456,30 +2060,26 @@ public class RiveScriptEngine {
 						try {
 							version = Double.valueOf(value).doubleValue();
 						} catch (NumberFormatException e) {
-							cry("RiveScript version \"" + value + "\" not a valid floating number", filename, lineno);
-							continue;
+							warn("RiveScript version \"" + value + "\" not a valid floating number", lineno);
+							return true;
 						}
 
 						if (version > RS_VERSION) {
-							cry("We can't parse RiveScript v" + value + " documents", filename, lineno);
+							warn("We can't parse RiveScript v" + value + " documents", lineno);
 							return false;
 						}
 
-						continue;
+						return true;
 					}
 					else {
 						// All the other types require a variable and value.
 						if (var.equals("")) {
-							cry("Missing a " + type + " variable name", filename, lineno);
-							continue;
+							warn("Missing a " + type + " variable name", lineno);
+							return true;
 						}
 						if (value.equals("")) {
-							cry("Missing a " + type + " value", filename, lineno);
-							continue;
-						}
-						if (value.equals("<undef>")) {
-							// Deleting its value.
-							delete = true;
+							warn("Missing a " + type + " value", lineno);
+							return true;
 						}
 					}
 
@@ -1489,26 +2089,7 @@ public class RiveScriptEngine {
 						say("\tSet local parser option " + var + " = " + value);
 						local_options.put(var, value);
 					}
-					else if (type.equals("global")) {
-						// Is it a special global? (debug or depth or etc).
-						say("\tSet global " + var + " = " + value);
-						this.setGlobal(var, value);
-					}
-					else if (type.equals("var")) {
-						// Set a bot variable.
-						say("\tSet bot variable " + var + " = " + value);
-						this.setVariable(var, value);
-					}
 					else if (type.equals("array")) {
-						// Set an array.
-						say("\tSet array " + var);
-
-						// Deleting it?
-						if (delete) {
-							arrays.remove(var);
-							continue;
-						}
-
 						// Did the array have multiple lines?
 						String[] parts = value.split("<crlf>");
 						Vector<String> items = new Vector<String>();
@@ -1527,23 +2108,14 @@ public class RiveScriptEngine {
 								items.add(pieces[b]);
 							}
 						}
-
-						// Store this array.
-						arrays.put(var, items);
+						document.add(Document.DEFINE, type, var, value, items, lineno);
 					}
-					else if (type.equals("sub")) {
-						// Set a substitution.
-						say("\tSubstitution " + var + " => " + value);
-						this.setSubstitution(var, value);
-					}
-					else if (type.equals("person")) {
-						// Set a person substitution.
-						say("\tPerson substitution " + var + " => " + value);
-						this.setPersonSubstitution(var, value);
+					else if (type.equals("global") || type.equals("var") || type.equals("sub") || type.equals("person")) {
+						document.add(Document.DEFINE, type, var, value, null, lineno);
 					}
 					else {
-						cry("Unknown definition type \"" + type + "\"", filename, lineno);
-						continue;
+						warn("Unknown definition type \"" + type + "\"", lineno);
+						return true;
 					}
 				}
 				else if (cmd.equals(CMD_LABEL)) {
@@ -1589,10 +2161,10 @@ public class RiveScriptEngine {
 								else if (mode > 0) {
 									// This topic is either inherited or included.
 									if (mode == mode_includes) {
-										topics.topic(topic).includes(label[a]);
+										document.topics.topic(topic).includes(label[a]);
 									}
 									else if (mode == mode_inherits) {
-										topics.topic(topic).inherits(label[a]);
+										document.topics.topic(topic).inherits(label[a]);
 									}
 								}
 							}
@@ -1608,13 +2180,13 @@ public class RiveScriptEngine {
 						// Only try to parse a language we support.
 						onTrig = "";
 						if (lang.length() == 0) {
-							cry("Trying to parse unknown programming language (assuming it's JavaScript)", filename, lineno);
+							warn("Trying to parse unknown programming language (assuming it's JavaScript)", lineno);
 							lang = "javascript"; // Assume it's JavaScript
 						}
-						if (!handlers.containsKey(lang)) {
+						if (!languages.contains(lang)) {
 							// We don't have a handler for this language.
 							say("We can't handle " + lang + " object code!");
-							continue;
+							return true;
 						}
 
 						// Start collecting its code!
@@ -1638,7 +2210,7 @@ public class RiveScriptEngine {
 						inobj = false;
 					}
 					else {
-						cry("Unknown end topic type \"" + type + "\"", filename, lineno);
+						warn("Unknown end topic type \"" + type + "\"", lineno);
 					}
 				}
 				else if (cmd.equals(CMD_TRIGGER)) {
@@ -1649,13 +2221,14 @@ public class RiveScriptEngine {
 						// This trigger had a %Previous. To prevent conflict, tag the
 						// trigger with the "that" text.
 						onTrig = line + "{previous}" + isThat;
-						topics.topic(topic).trigger(line).hasPrevious(true);
-						topics.topic(topic).addPrevious(line, isThat);
+						document.topics.topic(topic).trigger(line).hasPrevious(true);
+						document.topics.topic(topic).addPrevious(line, isThat);
 					}
 					else {
 						// Set the current trigger to this.
 						onTrig = line;
 					}
+					document.topics.topic(topic).trigger(onTrig).setSource(filename, lineno);
 				}
 				else if (cmd.equals(CMD_REPLY)) {
 					// - REPLY
@@ -1663,12 +2236,12 @@ public class RiveScriptEngine {
 
 					// This can't come before a trigger!
 					if (onTrig.length() == 0) {
-						cry("Reply found before trigger", filename, lineno);
-						continue;
+						warn("Reply found before trigger", lineno);
+						return true;
 					}
 
 					// Add the reply to the trigger.
-					topics.topic(topic).trigger(onTrig).addReply(line);
+					document.topics.topic(topic).trigger(onTrig).addReply(line);
 				}
 				else if (cmd.equals(CMD_PREVIOUS)) {
 					// % PREVIOUS
@@ -1684,13 +2257,13 @@ public class RiveScriptEngine {
 
 					// This can't come before a trigger!
 					if (onTrig.length() == 0) {
-						cry("Redirect found before trigger", filename, lineno);
-						continue;
+						warn("Redirect found before trigger", lineno);
+						return true;
 					}
 
 					// Add the redirect to the trigger.
 					// TODO: this extends RiveScript, not compat w/ Perl yet
-					topics.topic(topic).trigger(onTrig).addRedirect(line);
+					document.topics.topic(topic).trigger(onTrig).addRedirect(line);
 				}
 				else if (cmd.equals(CMD_CONDITION)) {
 					// * CONDITION
@@ -1698,19 +2271,20 @@ public class RiveScriptEngine {
 
 					// This can't come before a trigger!
 					if (onTrig.length() == 0) {
-						cry("Redirect found before trigger", filename, lineno);
-						continue;
+						warn("Redirect found before trigger", lineno);
+						return true;
 					}
 
 					// Add the condition to the trigger.
-					topics.topic(topic).trigger(onTrig).addCondition(line);
+					if (!document.topics.topic(topic).trigger(onTrig).addCondition(line)) {
+						warn("Malformed condition \"" + line + "\"", lineno);
+					}
 				}
 				else {
-					cry("Unrecognized command \"" + cmd + "\"", filename, lineno);
+					warn("Unrecognized command \"" + cmd + "\"", lineno);
 				}
+				return true;
 			}
-
-			return true;
 		}
 
 		/*---------------------*/
@@ -1728,10 +2302,435 @@ public class RiveScriptEngine {
 
 			// Tell the topic manager to sort its topics' replies.
 			this.topics.sortReplies();
+			forgetMatches();
+			forgetReplies();
+
+			// Compile the static triggers in each topic's sort buffer, and
+			// index the %Previous's each topic can see.
+			this.vocabulary = new Vocabulary();
+			for (int i = 0; i < topics.length; i++) {
+				CompiledTrigger[] compiled = compileTriggers(topics[i]);
+				this.topics.topic(topics[i]).setCompiled(compiled, buildMatcher(compiled));
+				this.topics.topic(topics[i]).setPreviousIndex(indexPrevious(topics[i]));
+			}
+
+			// Parse the replies, redirects and conditions, weigh the replies,
+			// and find the triggers whose reply only depends on their stars.
+			this.replyTemplates = parseReplies(topics);
+			for (int i = 0; i < topics.length; i++) {
+				com.rivescript.Topic topic = this.topics.topic(topics[i]);
+				String[] triggers = topic.listTriggers(true);
+				for (int j = 0; j < triggers.length; j++) {
+					com.rivescript.Trigger trigger = topic.trigger(triggers[j]);
+					trigger.prepare();
+					trigger.setPure(isPure(trigger));
+				}
+			}
+
+			// Match the redirects that have no tags in them, and look for loops.
+			String[] redirects = staticRedirects();
+			for (int i = 0; i < topics.length; i++) {
+				this.topics.topic(topics[i]).setRedirects(resolveRedirects(topics[i], redirects));
+			}
+			this.redirectLoops = new Vector<String>();
+			HashSet<String> loops = new HashSet<String>();
+			for (int i = 0; i < topics.length; i++) {
+				checkRedirects(topics[i], loops);
+			}
+
+			// Build the substitutions.
+			subber = new Substitutor(subs);
+			personSubber = new Substitutor(person);
+		}
+		
+
+		/**
+		 * Find the redirect targets that have no tags, from both @redirects and
+		 * {@redirect} tags. Call this after parseReplies().
+		 */
+		private String[] staticRedirects () {
+			Vector<String> redirects = new Vector<String>();
+			for (ReplyTemplate template : this.replyTemplates.values()) {
+				staticRedirects(template.nodes(), redirects);
+			}
+
+			String[] topics = this.topics.listTopics();
+			for (int i = 0; i < topics.length; i++) {
+				com.rivescript.Topic topic = this.topics.topic(topics[i]);
+				String[] triggers = topic.listTriggers(true);
+				for (int j = 0; j < triggers.length; j++) {
+					for (String redirect : topic.trigger(triggers[j]).listRedirects()) {
+						// The engine runs tags on the redirect before following it.
+						String text = replyTemplate(redirect.replaceAll("\\{weight=\\d+\\}","")).literal();
+						if (text != null) {
+							redirects.add(text);
+						}
+					}
+				}
+			}
+			return com.rivescript.Util.Sv2s(redirects);
+		}
+
+		/**
+		 * Collect the {@redirect} tags with no other tags inside them.
+		 */
+		private void staticRedirects (ReplyTemplate.Node[] nodes, Vector<String> redirects) {
+			for (ReplyTemplate.Node node : nodes) {
+				if (node.type == ReplyTemplate.REDIRECT) {
+					if (node.children == null || node.children.length == 0) {
+						redirects.add("");
+					}
+					else if (node.children.length == 1 && node.children[0].type == ReplyTemplate.TEXT) {
+						redirects.add(node.children[0].text.trim());
+					}
+				}
+				if (node.children != null) {
+					staticRedirects(node.children, redirects);
+				}
+				if (node.choices != null) {
+					for (ReplyTemplate.Node[] choice : node.choices) {
+						staticRedirects(choice, redirects);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Match static redirects in a topic ahead of time. A redirect can only be
+		 * matched now if no dynamic trigger that might match it is sorted ahead
+		 * of its match, since those depend on the user. A dynamic trigger can't
+		 * match if the redirect lacks one of the plain words of the trigger.
+		 *
+		 * @param topic     The name of the (already compiled) topic.
+		 * @param redirects The redirect texts.
+		 * @return The match for each redirect that could be matched.
+		 */
+		private HashMap<String, MatchCache.Result> resolveRedirects (String topic, String[] redirects) {
+			HashMap<String, MatchCache.Result> resolved = new HashMap<String, MatchCache.Result>();
+			com.rivescript.Topic current = this.topics.topic(topic);
+			CompiledTrigger[] triggers = current.listCompiled();
+			int[] dynamic = current.listDynamic();
+			String[][] required = new String [ dynamic.length ][];
+			for (int d = 0; d < dynamic.length; d++) {
+				required[d] = com.rivescript.Util.Sv2s(LiteralFilter.required(triggers[ dynamic[d] ].pattern()));
+			}
+
+			for (int i = 0; i < redirects.length; i++) {
+				String message = redirects[i];
+				if (resolved.containsKey(message)) {
+					continue;
+				}
+
+				TriggerMatch match = current.match(message);
+				int limit = (match == null) ? triggers.length : match.index();
+				boolean dependsOnUser = false;
+				for (int d = 0; d < dynamic.length && dynamic[d] < limit && !dependsOnUser; d++) {
+					dependsOnUser = true;
+					for (String word : required[d]) {
+						if (message.indexOf(word) < 0) {
+							dependsOnUser = false;
+							break;
+						}
+					}
+				}
+				if (!dependsOnUser) {
+					resolved.put(message, matchResult(topic, match));
+				}
+			}
+			return resolved;
+		}
+
+		/**
+		 * Test whether the reply to a trigger depends only on the stars it
+		 * matched: it has one reply, no redirects or conditions, and no tags
+		 * other than stars, {person} and the string formatting tags.
+		 *
+		 * @param trigger The trigger.
+		 */
+		private boolean isPure (Trigger trigger) {
+			if (trigger.countRedirects() > 0 || trigger.listReplies().length != 1 || trigger.listConditions().length > 0) {
+				return false;
+			}
+			return isPure(replyTemplate(trigger.getReply(0)).nodes());
+		}
+
+		/**
+		 * Test whether a list of reply nodes only depends on the stars.
+		 */
+		private boolean isPure (ReplyTemplate.Node[] nodes) {
+			for (ReplyTemplate.Node node : nodes) {
+				switch (node.type) {
+					case ReplyTemplate.TEXT:
+					case ReplyTemplate.STAR:
+					case ReplyTemplate.BOTSTAR:
+					case ReplyTemplate.PERSON:
+					case ReplyTemplate.FORMAL:
+					case ReplyTemplate.SENTENCE:
+					case ReplyTemplate.UPPERCASE:
+					case ReplyTemplate.LOWERCASE:
+						break;
+					default:
+						return false;
+				}
+				if (node.children != null && !isPure(node.children)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Look for loops of static redirects in a topic, and warn about each one,
+		 * with where its triggers were defined. A loop is only a possible one:
+		 * a trigger might have other replies, or conditions, to get out of it.
+		 *
+		 * @param topic The name of the (already compiled) topic.
+		 * @param loops The loops found so far, so that each is only reported once.
+		 */
+		private void checkRedirects (String topic, HashSet<String> loops) {
+			com.rivescript.Topic current = this.topics.topic(topic);
+			CompiledTrigger[] compiled = current.listCompiled();
+
+			// Find where each trigger in the topic redirects to.
+			Vector<Trigger> nodes = new Vector<Trigger>();
+			HashMap<Trigger, Vector<Trigger>> edges = new HashMap<Trigger, Vector<Trigger>>();
+			for (int i = 0; i < compiled.length; i++) {
+				String pattern = compiled[i].pattern();
+				Trigger trigger = current.triggerExists(pattern) ? current.trigger(pattern)
+					: this.topics.findTriggerByInheritance(topic, pattern, 0);
+				if (trigger == null || edges.containsKey(trigger)) {
+					continue;
+				}
+
+				// Both @redirects and {@redirect} tags.
+				Vector<String> texts = new Vector<String>();
+				for (String redirect : trigger.listRedirects()) {
+					String text = replyTemplate(redirect.replaceAll("\\{weight=\\d+\\}","")).literal();
+					if (text != null) {
+						texts.add(text);
+					}
+				}
+				for (String reply : trigger.listReplies()) {
+					staticRedirects(replyTemplate(reply).nodes(), texts);
+				}
+				for (Condition condition : trigger.conditions()) {
+					staticRedirects(replyTemplate(condition.reply()).nodes(), texts);
+				}
+
+				Vector<Trigger> targets = new Vector<Trigger>();
+				for (String text : texts) {
+					MatchCache.Result result = current.redirect(text);
+					if (result != null && result.matched() != null && !targets.contains(result.matched())) {
+						targets.add(result.matched());
+					}
+				}
+				nodes.add(trigger);
+				edges.put(trigger, targets);
+			}
+
+			// Walk the redirects depth first; a redirect back to a trigger on the
+			// path is a loop.
+			HashMap<Trigger, Boolean> done = new HashMap<Trigger, Boolean>(); // false while on the path
+			for (Trigger start : nodes) {
+				if (done.containsKey(start)) {
+					continue;
+				}
+				Vector<Trigger> path = new Vector<Trigger>();
+				Vector<Integer> next = new Vector<Integer>();
+				path.add(start);
+				next.add(0);
+				done.put(start, false);
+				while (path.size() > 0) {
+					int last = path.size() - 1;
+					Trigger trigger = path.get(last);
+					Vector<Trigger> targets = edges.get(trigger);
+					int e = next.get(last);
+					if (targets == null || e >= targets.size()) {
+						done.put(trigger, true);
+						path.remove(last);
+						next.remove(last);
+						continue;
+					}
+					next.set(last, e + 1);
+
+					Trigger target = targets.get(e);
+					if (!done.containsKey(target)) {
+						path.add(target);
+						next.add(0);
+						done.put(target, false);
+					}
+					else if (!done.get(target)) {
+						reportLoop(topic, path.subList(path.indexOf(target), path.size()), loops);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Warn about a loop of redirects, unless it was already reported.
+		 *
+		 * @param topic The topic it was found in.
+		 * @param loop  The triggers in the loop, in order.
+		 * @param loops The loops reported so far.
+		 */
+		private void reportLoop (String topic, java.util.List<Trigger> loop, HashSet<String> loops) {
+			String[] names = new String [ loop.size() ];
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i <= loop.size(); i++) {
+				Trigger trigger = loop.get(i % loop.size());
+				String name = "\"" + trigger.pattern() + "\"";
+				if (trigger.file() != null) {
+					name += " (" + trigger.file() + " line " + trigger.line() + ")";
+				}
+				if (i < loop.size()) {
+					names[i] = name;
+				}
+				text.append((i > 0) ? " -> " : "").append(name);
+			}
+
+			// The same loop can be found from any of its triggers, or in another topic.
+			Arrays.sort(names);
+			if (loops.add(com.rivescript.Util.join(names, "\n"))) {
+				String warning = "Possible redirect loop in topic " + topic + ": " + text;
+				cry(warning);
+				this.redirectLoops.add(warning);
+			}
+		}
+
+		/**
+		 * Compile the sort buffer of a topic. Each static trigger gets its regexp
+		 * compiled once here, so that reply() only has to run the matcher.
+		 *
+		 * @param topic The name of the (already sorted) topic.
+		 */
+		private CompiledTrigger[] compileTriggers (String topic) {
+			String[] sorted = this.topics.topic(topic).listTriggers();
+			CompiledTrigger[] compiled = new CompiledTrigger [ sorted.length ];
+			for (int i = 0; i < sorted.length; i++) {
+				String trigger = sorted[i];
+				if (CompiledTrigger.isDynamic(trigger)) {
+					compiled[i] = new CompiledTrigger(trigger, null, triggerTemplate(trigger), null, null);
+					continue;
+				}
+
+				Pattern re = null;
+				try {
+					re = Pattern.compile("^" + triggerRegexp(trigger) + "$");
+				} catch (PatternSyntaxException e) {
+					cry("Invalid regular expression for trigger \"" + trigger + "\" in topic " + topic + ": " + e.getDescription());
+				}
+				// A static trigger made only of plain words can only ever match a
+				// message that is exactly the same text.
+				String literal = trigger.replaceAll("\\{weight=\\d+\\}", "");
+				if (re == null || !literal.matches("[a-z0-9 ]+")) {
+					literal = null;
+				}
+				WordPattern words = null;
+				if (re != null) {
+					words = WordPattern.parse(trigger, arrays, vocabulary);
+				}
+				compiled[i] = new CompiledTrigger(trigger, re, null, literal, words);
+			}
+			return compiled;
+		}
+		
+
+		/**
+		 * Parse the text of every reply, redirect and condition into trees of tags.
+		 *
+		 * @param topics The names of all the topics.
+		 * @return The parsed trees, keyed by their text.
+		 */
+		private HashMap<String, ReplyTemplate> parseReplies (String[] topics) {
+			HashMap<String, ReplyTemplate> parsed = new HashMap<String, ReplyTemplate>();
+			Vector<String> texts = new Vector<String>();
+
+			for (int i = 0; i < topics.length; i++) {
+				com.rivescript.Topic topic = this.topics.topic(topics[i]);
+				String[] triggers = topic.listTriggers(true);
+				for (int j = 0; j < triggers.length; j++) {
+					com.rivescript.Trigger trigger = topic.trigger(triggers[j]);
+					texts.addAll(Arrays.asList(trigger.listReplies()));
+					for (String redirect : trigger.listRedirects()) {
+						texts.add(redirect.replaceAll("\\{weight=\\d+\\}",""));
+					}
+
+					// The replies of conditions (their sides were parsed when
+					// they were added).
+					for (Condition condition : trigger.conditions()) {
+						texts.add(condition.reply());
+					}
+				}
+			}
+
+			for (String text : texts) {
+				if (!parsed.containsKey(text)) {
+					parsed.put(text, ReplyTemplate.parse(text));
+				}
+			}
+			return parsed;
+		}
+
+		/**
+		 * Index the %Previous's that a topic can see, from itself and from the
+		 * topics it includes or inherits.
+		 *
+		 * @param topic The name of the (already sorted) topic.
+		 */
+		private PreviousIndex indexPrevious (String topic) {
+			String[] allTopics = { topic };
+			if (this.topics.topic(topic).includes().length > 0 || this.topics.topic(topic).inherits().length > 0) {
+				// We need to walk the topic tree.
+				allTopics = this.topics.getTopicTree(topic, 0);
+			}
+
+			Vector<PreviousIndex.Entry> entries = new Vector<PreviousIndex.Entry>();
+			for (int i = 0; i < allTopics.length; i++) {
+				if (!this.topics.exists(allTopics[i]) || !this.topics.topic(allTopics[i]).hasPrevious()) {
+					continue;
+				}
+				com.rivescript.Topic current = this.topics.topic(allTopics[i]);
+
+				String[] previous = current.listPrevious();
+				for (int j = 0; j < previous.length; j++) {
+					// Only keep the triggers that really carry this %Previous.
+					Vector<String> triggers = new Vector<String>();
+					Vector<TriggerTemplate> human = new Vector<TriggerTemplate>();
+					Vector<com.rivescript.Trigger> matched = new Vector<com.rivescript.Trigger>();
+					String[] candidates = current.listPreviousTriggers(previous[j]);
+					for (int k = 0; k < candidates.length; k++) {
+						String realTrigger = candidates[k] + "{previous}" + previous[j];
+						if (current.triggerExists(realTrigger)) {
+							triggers.add(candidates[k]);
+							human.add(triggerTemplate(candidates[k]));
+							matched.add(current.trigger(realTrigger));
+						}
+					}
 
-			// Sort the substitutions.
-			subs_s = com.rivescript.Util.sortByLength (com.rivescript.Util.SSh2s(subs));
-			person_s = com.rivescript.Util.sortByLength (com.rivescript.Util.SSh2s(person));
+					entries.add(new PreviousIndex.Entry(allTopics[i], previous[j], triggerTemplate(previous[j]),
+						Util.Sv2s(triggers), human.toArray(new TriggerTemplate [0]),
+						matched.toArray(new com.rivescript.Trigger [0])));
+				}
+			}
+			return new PreviousIndex(entries);
+		}
+
+		/**
+		 * Build the configured trigger matcher for a compiled sort buffer.
+		 *
+		 * @param compiled The topic's compiled sort buffer.
+		 */
+		private TriggerMatcher buildMatcher (CompiledTrigger[] compiled) {
+			if (matcher.equals(MATCHER_REGEX)) {
+				return new RegexMatcher(compiled);
+			}
+			else if (matcher.equals(MATCHER_DFA)) {
+				return new DfaMatcher(compiled);
+			}
+			else if (matcher.equals(MATCHER_GLOB)) {
+				return new GlobMatcher(compiled, vocabulary);
+			}
+			return new TrieMatcher(compiled, vocabulary);
 		}
 		
 
@@ -1739,6 +2738,140 @@ public class RiveScriptEngine {
 		/*-- Configuration Methods --*/
 		/*---------------------------*/
 
+		/**
+		 * Choose the strategy used to match messages against triggers. This takes
+		 * effect the next time sortReplies() is called. The strategies are:<p>
+		 *
+		 * "trie" (the default) compiles each topic into a trie of words, so that
+		 * matching costs about the same no matter how many triggers a topic has.<p>
+		 *
+		 * "dfa" compiles each topic into one automaton that reads a message a
+		 * character at a time. Its states are built as messages need them, so it
+		 * uses more memory than the trie but settles on a fixed cost per character.<p>
+		 *
+		 * "glob" tests each trigger in sort order like "regex" does, but matches
+		 * the words of the message directly instead of running a regexp.<p>
+		 *
+		 * "regex" tests each trigger's regular expression in sort order.<p>
+		 *
+		 * Returns false if the name isn't a known strategy.
+		 *
+		 * @param name The name of the strategy.
+		 */
+		public boolean setMatcher (String name) {
+			if (!name.equals(MATCHER_TRIE) && !name.equals(MATCHER_REGEX) && !name.equals(MATCHER_DFA)
+					&& !name.equals(MATCHER_GLOB)) {
+				return error("Unknown trigger matcher \"" + name + "\"");
+			}
+			this.matcher = name;
+			return true;
+		}
+
+		/**
+		 * Turn on the match cache, which remembers the trigger that each recent
+		 * message matched (per topic, and per value of any user data the topic's
+		 * triggers depend on) so that repeated messages skip the trigger search.
+		 * The cache is emptied when replies are loaded or sorted and when bot
+		 * variables change.
+		 *
+		 * @param size The most matches to remember, or 0 to turn the cache off.
+		 */
+		public void setMatchCache (int size) {
+			this.matchCache = (size > 0) ? new MatchCache(size) : null;
+		}
+
+		/**
+		 * Get the match cache, for its hit and miss counters. Returns null if the
+		 * cache is off.
+		 */
+		public MatchCache getMatchCache () {
+			return this.matchCache;
+		}
+
+		/**
+		 * Turn on the reply cache, which keeps the rendered replies of triggers
+		 * whose reply only depends on the stars they matched (one reply, no
+		 * conditions, and no tags besides stars, {person} and the string
+		 * formatting tags). It is emptied whenever the replies are loaded or
+		 * sorted, or the person substitutions change.
+		 *
+		 * @param size The most replies to remember, or 0 to turn the cache off.
+		 */
+		public void setReplyCache (int size) {
+			this.replyCache = (size > 0) ? new ReplyCache(size) : null;
+		}
+
+		/**
+		 * Get the reply cache, for its hit and miss counters. Returns null if the
+		 * cache is off.
+		 */
+		public ReplyCache getReplyCache () {
+			return this.replyCache;
+		}
+
+		/**
+		 * Set the normalizer that formats users' messages for matching, e.g. to
+		 * keep accented letters with new MessageNormalizer(MessageNormalizer.UNICODE).
+		 *
+		 * @param normalizer The normalizer.
+		 */
+		public void setNormalizer (MessageNormalizer normalizer) {
+			this.normalizer = normalizer;
+		}
+
+		/**
+		 * Get the normalizer that formats users' messages for matching.
+		 */
+		public MessageNormalizer getNormalizer () {
+			return this.normalizer;
+		}
+
+		/**
+		 * Set the executor that loadDirectory() reads and parses the files on,
+		 * to load a big directory on several threads. The files are still added
+		 * to the bot one at a time on the calling thread, in order of their
+		 * names, so the bot comes out the same however the parsing was split up.
+		 *
+		 * @param executor The executor, or null to read the files one by one on
+		 *                 the calling thread (the default).
+		 */
+		public void setLoadExecutor (Executor executor) {
+			this.loadExecutor = executor;
+		}
+
+		/**
+		 * Get the executor that loadDirectory() reads the files on, or null.
+		 */
+		public Executor getLoadExecutor () {
+			return this.loadExecutor;
+		}
+
+		/**
+		 * Empty the reply cache, if it's on.
+		 */
+		private void forgetReplies () {
+			if (replyCache != null) {
+				replyCache.clear();
+			}
+		}
+
+		/**
+		 * Empty the match cache, if it's on.
+		 */
+		private void forgetMatches () {
+			if (matchCache != null) {
+				matchCache.clear();
+			}
+		}
+
+		/**
+		 * Get the possible redirect loops that sortReplies() found, one
+		 * description per loop.
+		 */
+		public String[] listRedirectLoops () {
+			return com.rivescript.Util.Sv2s(this.redirectLoops);
+		}
+
 		/**
 		 * Add a handler for a programming language to be used with RiveScript object calls.
 		 *
@@ -1843,6 +2976,7 @@ public class RiveScriptEngine {
 			else {
 				vars.put(name, value);
 			}
+			forgetMatches();
 
 			return true;
 		}
@@ -1863,6 +2997,7 @@ public class RiveScriptEngine {
 			else {
 				subs.put(pattern, output);
 			}
+			subber = null;
 
 			return true;
 		}
@@ -1884,6 +3019,8 @@ public class RiveScriptEngine {
 			else {
 				person.put(pattern, output);
 			}
+			personSubber = null;
+			forgetReplies();
 
 			return true;
 		}
@@ -1965,6 +3102,8 @@ public class RiveScriptEngine {
 
 		public void setTopics(com.rivescript.TopicManager topics) {
 			this.topics = topics;
+			forgetMatches();
+			forgetReplies();
 		}
 
 
@@ -1989,6 +3128,7 @@ public class RiveScriptEngine {
 
 		public void setVars(HashMap<String, String> vars) {
 			this.vars = vars;
+			forgetMatches();
 		}
 
 
@@ -2001,6 +3141,7 @@ public class RiveScriptEngine {
 
 		public void setSubs(HashMap<String, String> subs) {
 			this.subs = subs;
+			this.subber = null;
 		}
 
 
@@ -2013,6 +3154,8 @@ public class RiveScriptEngine {
 
 		public void setPerson(HashMap<String, String> person) {
 			this.person = person;
+			this.personSubber = null;
+			forgetReplies();
 		}
 		
 }
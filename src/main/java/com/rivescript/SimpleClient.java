@@ -36,6 +36,7 @@ public class SimpleClient implements Client  {
 	private HashMap<String, String> data = new HashMap<String, String>(); // User data
 	private String[] input = new String [10]; // User's inputs
 	private String[] reply = new String [10]; // Bot's replies
+	private String[] normalized = new String [10]; // Bot's replies, normalized (or null)
 
 	/**
 	 * Create a new client object.
@@ -131,8 +132,17 @@ public class SimpleClient implements Client  {
 	 */
 	@Override
 	public void addReply (String text) {
-		// Push this onto the front of the reply array.
+		addReply(text, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.rivescript.Client#addReply(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void addReply (String text, String normalized) {
+		// Push this onto the front of the reply arrays.
 		reply = unshift(reply, text);
+		this.normalized = unshift(this.normalized, normalized);
 	}
 
 	/* (non-Javadoc)
@@ -161,6 +171,19 @@ public class SimpleClient implements Client  {
 		}
 	}
 
+	/* (non-Javadoc)
+	 * @see com.rivescript.Client#getNormalizedReply(int)
+	 */
+	@Override
+	public String getNormalizedReply (int index) throws java.lang.IndexOutOfBoundsException {
+		if (index >= 1 && index <= 9) {
+			return this.normalized[index-1];
+		}
+		else {
+			throw new java.lang.IndexOutOfBoundsException();
+		}
+	}
+
 	/**
 	 * Shift an item to the beginning of an array and rotate.
 	 */
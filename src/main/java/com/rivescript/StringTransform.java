@@ -0,0 +1,184 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The string formatting done by the {formal}, {sentence}, {uppercase} and
+ * {lowercase} tags.<p>
+ *
+ * Each transform reads a CharSequence and writes to an Appendable in one pass.
+ * Letters are capitalized with their Unicode title case, so letters like "&#454;"
+ * come out right, and words are separated by any whitespace.
+ */
+
+public class StringTransform {
+	/**
+	 * Run one of the transforms by name.
+	 *
+	 * @param format The transform: formal, sentence, uppercase or lowercase.
+	 * @param text   The text to transform.
+	 * @param out    Where to write the result.
+	 */
+	public static void transform (String format, CharSequence text, Appendable out) throws IOException {
+		if (format.equals("uppercase")) {
+			uppercase(text, out);
+		}
+		else if (format.equals("lowercase")) {
+			lowercase(text, out);
+		}
+		else if (format.equals("formal")) {
+			formal(text, out);
+		}
+		else if (format.equals("sentence")) {
+			sentence(text, out);
+		}
+		else {
+			out.append("[ERR: Unknown String Transform " + format + "]");
+		}
+	}
+
+	/**
+	 * Run one of the transforms by name, and return the result.
+	 *
+	 * @param format The transform: formal, sentence, uppercase or lowercase.
+	 * @param text   The text to transform.
+	 */
+	public static String transform (String format, CharSequence text) {
+		StringBuilder out = new StringBuilder(text.length());
+		try {
+			transform(format, text, out);
+		} catch (IOException e) {
+			// A StringBuilder never throws this.
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Capitalize Each First Letter.
+	 *
+	 * @param text The text to transform.
+	 * @param out  Where to write the result.
+	 */
+	public static void formal (CharSequence text, Appendable out) throws IOException {
+		boolean start = true;
+		int n = text.length();
+		for (int i = 0; i < n; ) {
+			int c = Character.codePointAt(text, i);
+			int next = i + Character.charCount(c);
+			if (Character.isWhitespace(c)) {
+				start = true;
+				out.append(text, i, next);
+			}
+			else if (start) {
+				start = false;
+				appendCodePoint(out, Character.toTitleCase(c));
+			}
+			else {
+				out.append(text, i, next);
+			}
+			i = next;
+		}
+	}
+
+	/**
+	 * Capitalize the first letter of the text.
+	 *
+	 * @param text The text to transform.
+	 * @param out  Where to write the result.
+	 */
+	public static void sentence (CharSequence text, Appendable out) throws IOException {
+		if (text.length() == 0) {
+			return;
+		}
+		int c = Character.codePointAt(text, 0);
+		appendCodePoint(out, Character.toTitleCase(c));
+		out.append(text, Character.charCount(c), text.length());
+	}
+
+	/**
+	 * UPPERCASE THE TEXT.
+	 *
+	 * @param text The text to transform.
+	 * @param out  Where to write the result.
+	 */
+	public static void uppercase (CharSequence text, Appendable out) throws IOException {
+		if (!isAscii(text)) {
+			// Some letters change length, or depend on the letters around them.
+			out.append(text.toString().toUpperCase(Locale.ROOT));
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			out.append((c >= 'a' && c <= 'z') ? (char) (c - 'a' + 'A') : c);
+		}
+	}
+
+	/**
+	 * lowercase the text.
+	 *
+	 * @param text The text to transform.
+	 * @param out  Where to write the result.
+	 */
+	public static void lowercase (CharSequence text, Appendable out) throws IOException {
+		if (!isAscii(text)) {
+			// Some letters change length, or depend on the letters around them.
+			out.append(text.toString().toLowerCase(Locale.ROOT));
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			out.append((c >= 'A' && c <= 'Z') ? (char) (c - 'A' + 'a') : c);
+		}
+	}
+
+	/**
+	 * Test whether a text is all ASCII.
+	 */
+	private static boolean isAscii (CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Append a Unicode code point, as one char or a surrogate pair.
+	 */
+	private static void appendCodePoint (Appendable out, int c) throws IOException {
+		if (c < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+			out.append((char) c);
+		}
+		else {
+			c -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+			out.append((char) ((c >>> 10) + Character.MIN_HIGH_SURROGATE));
+			out.append((char) ((c & 0x3ff) + Character.MIN_LOW_SURROGATE));
+		}
+	}
+}
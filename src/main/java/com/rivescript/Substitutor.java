@@ -0,0 +1,142 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a set of substitutions (like ! sub or ! person) over a text.<p>
+ *
+ * The patterns are put in a trie of characters. One pass over the text tries
+ * the trie at the start of each word and replaces the longest pattern that
+ * ends at the end of a word, then carries on after it; a replacement is never
+ * looked at again. "The start of a word" means the start of the text or just
+ * after a non-word character (anything but a letter, digit or underscore),
+ * and likewise for the end.
+ */
+
+public class Substitutor {
+	private final Node root = new Node();
+
+	/**
+	 * A node in the trie.
+	 */
+	private static class Node {
+		HashMap<Character, Node> next = new HashMap<Character, Node>();
+		String output = null; // The replacement, if a pattern ends here
+	}
+
+	/**
+	 * Build a substitutor.
+	 *
+	 * @param subs The patterns and their replacements.
+	 */
+	public Substitutor (Map<String, String> subs) {
+		for (Map.Entry<String, String> sub : subs.entrySet()) {
+			String pattern = sub.getKey();
+			if (pattern.length() == 0 || sub.getValue() == null) {
+				continue;
+			}
+
+			Node node = root;
+			for (int i = 0; i < pattern.length(); i++) {
+				Node next = node.next.get(pattern.charAt(i));
+				if (next == null) {
+					next = new Node();
+					node.next.put(pattern.charAt(i), next);
+				}
+				node = next;
+			}
+			node.output = sub.getValue();
+		}
+	}
+
+	/**
+	 * Run the substitutions on a text.
+	 *
+	 * @param text The text.
+	 * @return The substituted text (the same string, if nothing changed).
+	 */
+	public String substitute (String text) {
+		if (root.next.isEmpty()) {
+			return text;
+		}
+		StringBuilder out = new StringBuilder(text.length());
+		if (!substitute(text, out)) {
+			return text;
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Run the substitutions on a text, appending the result to a buffer.
+	 *
+	 * @param text The text.
+	 * @param out  Where to append the result.
+	 * @return Whether anything was substituted.
+	 */
+	public boolean substitute (CharSequence text, StringBuilder out) {
+		boolean changed = false;
+		int n = text.length();
+		int copied = 0; // Text up to here is in the output
+		int i = 0;
+		while (i < n) {
+			if (i == 0 || !isWord(text.charAt(i - 1))) {
+				// Find the longest pattern here that ends at the end of a word.
+				Node node = root;
+				int end = -1;
+				String output = null;
+				for (int j = i; j < n; j++) {
+					node = node.next.get(text.charAt(j));
+					if (node == null) {
+						break;
+					}
+					if (node.output != null && (j + 1 == n || !isWord(text.charAt(j + 1)))) {
+						end = j + 1;
+						output = node.output;
+					}
+				}
+
+				if (end > -1) {
+					out.append(text, copied, i).append(output);
+					copied = i = end;
+					changed = true;
+					continue;
+				}
+			}
+			i++;
+		}
+		out.append(text, copied, n);
+		return changed;
+	}
+
+	/**
+	 * Test whether a character is a word character (like \w in a regexp).
+	 */
+	private static boolean isWord (char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+}
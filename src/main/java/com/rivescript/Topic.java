@@ -24,6 +24,7 @@
 
 package com.rivescript;
 
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -43,9 +44,15 @@ public class Topic {
 	private boolean hasPrevious  = false;                   // Has at least one %Previous
 	private HashMap<String, Vector<String> > previous =
 		new HashMap<String, Vector<String> >();             // Mapping of %Previous's to their triggers
+	private String[] sortedPrevious = null;                 // Sorted %Previous list
 	private Vector<String> includes = new Vector<String>(); // Included topics
 	private Vector<String> inherits = new Vector<String>(); // Inherited topics
 	private String[] sorted         = null;                 // Sorted trigger list
+	private CompiledTrigger[] compiled = null;              // Compiled sort buffer
+	private TriggerMatcher matcher  = null;                 // Matcher for the static triggers
+	private int[] dynamic           = new int [0];          // Sort indexes of dynamic triggers
+	private PreviousIndex previousIndex = null;             // %Previous's this topic can see
+	private HashMap<String, MatchCache.Result> redirects = null; // Static redirects, matched ahead of time
 
 	// Currently selected topic.
 	String name = "";
@@ -197,138 +204,264 @@ public class Topic {
 			say("Sorting triggers by heritage level " + inherits);
 			String[] triggers = com.rivescript.Util.Sv2s(heritage.get(inherits));
 
-			// Sort-priority maps.
-			HashMap<Integer, Vector<String> > prior = new HashMap<Integer, Vector<String> >();
-
-			// Assign each trigger to its priority level.
-			say("BEGIN sortTriggers in topic " + this.name);
-			Pattern rePrior = Pattern.compile("\\{weight=(\\d+?)\\}");
-			for (int i = 0; i < triggers.length; i++) {
-				int priority = 0;
-
-				// See if this trigger has a {weight}.
-				if (triggers[i].indexOf("{weight") > -1) {
-					// Try to match the regexp then.
-					Matcher m = rePrior.matcher(triggers[i]);
-					while (m.find() == true) {
-						priority = Integer.parseInt(m.group(1));
-					}
-				}
+			sortLevel(triggers, inherits, sorted);
+		}
+
+		// Turn the running sort buffer into a string array and store it.
+		this.sorted = com.rivescript.Util.Sv2s (sorted);
+
+		// The compiled buffer no longer lines up with the sort buffer.
+		this.compiled = null;
+		this.matcher  = null;
+		this.dynamic  = new int [0];
+		this.previousIndex = null;
+		this.redirects = null;
+	}
+
+	/**
+	 * Sort one inheritance level of triggers, by {weight} and then by the
+	 * kind and number of words in each, adding them to the sort buffer.
+	 *
+	 * @param triggers The triggers on this level.
+	 * @param inherits The {inherits} level, or -1 for none.
+	 * @param sorted   The sort buffer to add them to.
+	 */
+	private void sortLevel (String[] triggers, int inherits, Vector<String> sorted) {
+		// Sort-priority maps.
+		HashMap<Integer, Vector<String> > prior = new HashMap<Integer, Vector<String> >();
 
-				// Initialize its priority group?
-				if (prior.containsKey(priority) == false) {
-					// Create it.
-					prior.put(priority, new Vector<String>() );
+		// Assign each trigger to its priority level.
+		say("BEGIN sortTriggers in topic " + this.name);
+		Pattern rePrior = Pattern.compile("\\{weight=(\\d+?)\\}");
+		for (int i = 0; i < triggers.length; i++) {
+			int priority = 0;
+
+			// See if this trigger has a {weight}.
+			if (triggers[i].indexOf("{weight") > -1) {
+				// Try to match the regexp then.
+				Matcher m = rePrior.matcher(triggers[i]);
+				while (m.find() == true) {
+					priority = Integer.parseInt(m.group(1));
 				}
+			}
 
-				// Add it.
-				prior.get(priority).add(triggers[i]);
+			// Initialize its priority group?
+			if (prior.containsKey(priority) == false) {
+				// Create it.
+				prior.put(priority, new Vector<String>() );
 			}
 
+			// Add it.
+			prior.get(priority).add(triggers[i]);
+		}
+
+		/*
+			Keep in mind here that there is a difference between includes and
+			inherits -- topics that inherit other topics are able to OVERRIDE
+			triggers that appear in the inherited topic. This means that if the
+			top topic has a trigger of simply *, then NO triggers are capable of
+			matching in ANY inherited topic, because even though * has the lowest
+			sorting priority, it has an automatic priority over all inherited
+			topics.
+
+			The topicTriggers in TopicManager takes this into account. All topics
+			that inherit other topics will have their local triggers prefixed
+			with a fictional {inherits} tag, which will start at {inherits=0}
+			and increment if the topic tree has other inheriting topics. So
+			we can use this tag to make sure topics that inherit things will
+			have their triggers always be on the top of the stack, from
+			inherits=0 to inherits=n.
+		*/
+
+		// Sort the priority lists numerically from highest to lowest.
+		int[] prior_sorted = com.rivescript.Util.sortKeysDesc(prior);
+		for (int p = 0; p < prior_sorted.length; p++) {
+			say("Sorting triggers w/ priority " + prior_sorted[p]);
+			Vector<String> p_list = prior.get(prior_sorted[p]);
+
 			/*
-				Keep in mind here that there is a difference between includes and
-				inherits -- topics that inherit other topics are able to OVERRIDE
-				triggers that appear in the inherited topic. This means that if the
-				top topic has a trigger of simply *, then NO triggers are capable of
-				matching in ANY inherited topic, because even though * has the lowest
-				sorting priority, it has an automatic priority over all inherited
-				topics.
-
-				The topicTriggers in TopicManager takes this into account. All topics
-				that inherit other topics will have their local triggers prefixed
-				with a fictional {inherits} tag, which will start at {inherits=0}
-				and increment if the topic tree has other inheriting topics. So
-				we can use this tag to make sure topics that inherit things will
-				have their triggers always be on the top of the stack, from
-				inherits=0 to inherits=n.
+				So, some of these triggers may include {inherits} tags, if
+				they came from a topic which inherits another topic. Lower
+				inherits values mean higher priority on the stack. Keep this
+				in mind when keeping track of how to sort these things.
 			*/
 
-			// Sort the priority lists numerically from highest to lowest.
-			int[] prior_sorted = com.rivescript.Util.sortKeysDesc(prior);
-			for (int p = 0; p < prior_sorted.length; p++) {
-				say("Sorting triggers w/ priority " + prior_sorted[p]);
-				Vector<String> p_list = prior.get(prior_sorted[p]);
-
-				/*
-					So, some of these triggers may include {inherits} tags, if
-					they came from a topic which inherits another topic. Lower
-					inherits values mean higher priority on the stack. Keep this
-					in mind when keeping track of how to sort these things.
-				*/
-
-				int highest_inherits = inherits; // highest {inherits} we've seen
-
-				// Initialize a sort bucket that will keep inheritance levels'
-				// triggers in separate places.
-				//com.rivescript.InheritanceManager bucket = new com.rivescript.InheritanceManager();
-				com.rivescript.Inheritance bucket = new com.rivescript.Inheritance();
-
-				// Loop through the triggers and sort them into their buckets.
-				for (Enumeration e = p_list.elements(); e.hasMoreElements(); ) {
-					String trigger = e.nextElement().toString();
-
-					// Count the number of whole words it has.
-					String[] words = trigger.split("[ |\\*|\\#|\\_]");
-					int wc = 0;
-					for (int w = 0; w < words.length; w++) {
-						if (words[w].length() > 0) {
-							wc++;
-						}
+			int highest_inherits = inherits; // highest {inherits} we've seen
+
+			// Initialize a sort bucket that will keep inheritance levels'
+			// triggers in separate places.
+			//com.rivescript.InheritanceManager bucket = new com.rivescript.InheritanceManager();
+			com.rivescript.Inheritance bucket = new com.rivescript.Inheritance();
+
+			// Loop through the triggers and sort them into their buckets.
+			for (Enumeration e = p_list.elements(); e.hasMoreElements(); ) {
+				String trigger = e.nextElement().toString();
+
+				// Count the number of whole words it has.
+				String[] words = trigger.split("[ |\\*|\\#|\\_]");
+				int wc = 0;
+				for (int w = 0; w < words.length; w++) {
+					if (words[w].length() > 0) {
+						wc++;
 					}
+				}
+
+				say("On trigger: " + trigger + " (it has " + wc + " words) - inherit level: " + inherits);
 
-					say("On trigger: " + trigger + " (it has " + wc + " words) - inherit level: " + inherits);
-
-					// Profile it.
-					if (trigger.indexOf("_") > -1) {
-						// It has the alpha wildcard, _.
-						if (wc > 0) {
-							bucket.addAlpha(wc, trigger);
-						}
-						else {
-							bucket.addUnder(trigger);
-						}
+				// Profile it.
+				if (trigger.indexOf("_") > -1) {
+					// It has the alpha wildcard, _.
+					if (wc > 0) {
+						bucket.addAlpha(wc, trigger);
 					}
-					else if (trigger.indexOf("#") > -1) {
-						// It has the numeric wildcard, #.
-						if (wc > 0) {
-							bucket.addNumber(wc, trigger);
-						}
-						else {
-							bucket.addPound(trigger);
-						}
+					else {
+						bucket.addUnder(trigger);
 					}
-					else if (trigger.indexOf("*") > -1) {
-						// It has the global wildcard, *.
-						if (wc > 0) {
-							bucket.addWild(wc, trigger);
-						}
-						else {
-							bucket.addStar(trigger);
-						}
+				}
+				else if (trigger.indexOf("#") > -1) {
+					// It has the numeric wildcard, #.
+					if (wc > 0) {
+						bucket.addNumber(wc, trigger);
+					}
+					else {
+						bucket.addPound(trigger);
 					}
-					else if (trigger.indexOf("[") > -1) {
-						// It has optional parts.
-						bucket.addOption(wc, trigger);
+				}
+				else if (trigger.indexOf("*") > -1) {
+					// It has the global wildcard, *.
+					if (wc > 0) {
+						bucket.addWild(wc, trigger);
 					}
 					else {
-						// Totally atomic.
-						bucket.addAtomic(wc, trigger);
+						bucket.addStar(trigger);
 					}
 				}
-
-				// Sort each inheritence level individually.
-				say("Dumping sort bucket !");
-				Vector<String> subsort = bucket.dump(new Vector<String>());
-				for (Enumeration e = subsort.elements(); e.hasMoreElements(); ) {
-					String next = e.nextElement().toString();
-					say("ADD TO SORT: " + next);
-					sorted.add(next);
+				else if (trigger.indexOf("[") > -1) {
+					// It has optional parts.
+					bucket.addOption(wc, trigger);
+				}
+				else {
+					// Totally atomic.
+					bucket.addAtomic(wc, trigger);
 				}
 			}
+
+			// Sort each inheritence level individually.
+			say("Dumping sort bucket !");
+			Vector<String> subsort = bucket.dump(new Vector<String>());
+			for (Enumeration e = subsort.elements(); e.hasMoreElements(); ) {
+				String next = e.nextElement().toString();
+				say("ADD TO SORT: " + next);
+				sorted.add(next);
+			}
 		}
+	}
 
-		// Turn the running sort buffer into a string array and store it.
-		this.sorted = com.rivescript.Util.Sv2s (sorted);
+	/**
+	 * Fetch the compiled sort buffer. The entries line up one-to-one with the
+	 * results of listTriggers(), and are filled in by sortReplies() in the
+	 * RiveScriptEngine.
+	 */
+	public CompiledTrigger[] listCompiled () {
+		if (compiled == null) {
+			System.err.println("You called listCompiled() for topic " + name + " before its replies have been sorted!");
+			return new CompiledTrigger [0];
+		}
+		return compiled;
+	}
+
+	/**
+	 * Store the compiled sort buffer for this topic.
+	 *
+	 * @param compiled The compiled triggers, in the same order as listTriggers().
+	 * @param matcher  The matcher built for the static triggers in it.
+	 */
+	public void setCompiled (CompiledTrigger[] compiled, TriggerMatcher matcher) {
+		// Keep track of the dynamic triggers; the engine has to test them itself.
+		Vector<Integer> dynamic = new Vector<Integer>();
+		for (int i = 0; i < compiled.length; i++) {
+			if (compiled[i].isDynamic()) {
+				dynamic.add(i);
+			}
+		}
+
+		this.dynamic  = com.rivescript.Util.Iv2s(dynamic);
+		this.matcher  = matcher;
+		this.compiled = compiled;
+	}
+
+	/**
+	 * Find the static trigger with the best sort priority that matches the
+	 * message. Returns null if there is no match (or the topic isn't sorted).
+	 *
+	 * @param message The formatted message.
+	 */
+	public TriggerMatch match (String message) {
+		return match(new MessageTokens(message));
+	}
+
+	/**
+	 * Find the static trigger with the best sort priority that matches the
+	 * message, given its words. Returns null if there is no match (or the
+	 * topic isn't sorted).
+	 *
+	 * @param message The words of the formatted message.
+	 */
+	public TriggerMatch match (MessageTokens message) {
+		if (matcher == null) {
+			return null;
+		}
+		return matcher.match(message);
+	}
+
+	/**
+	 * Get the indexes of the dynamic triggers in the compiled sort buffer, in
+	 * sort order.
+	 */
+	public int[] listDynamic () {
+		return this.dynamic;
+	}
+
+	/**
+	 * Get the %Previous's this topic can see, including those of the topics it
+	 * includes or inherits. Returns null if the replies haven't been sorted.
+	 */
+	public PreviousIndex previousIndex () {
+		return this.previousIndex;
+	}
+
+	/**
+	 * Store the %Previous index for this topic. This is built by sortReplies()
+	 * in the RiveScriptEngine.
+	 *
+	 * @param index The %Previous index.
+	 */
+	public void setPreviousIndex (PreviousIndex index) {
+		this.previousIndex = index;
+	}
+
+	/**
+	 * Get the match for a static redirect, found when the replies were sorted.
+	 * Returns null if the message isn't one (or couldn't be matched ahead of
+	 * time).
+	 *
+	 * @param message The redirect text.
+	 */
+	public MatchCache.Result redirect (String message) {
+		if (this.redirects == null) {
+			return null;
+		}
+		return this.redirects.get(message);
+	}
+
+	/**
+	 * Store the matches for the static redirects in this topic. These are
+	 * found by sortReplies() in the RiveScriptEngine.
+	 *
+	 * @param redirects The match for each redirect text.
+	 */
+	public void setRedirects (HashMap<String, MatchCache.Result> redirects) {
+		this.redirects = redirects;
 	}
 
 	/**
@@ -343,6 +476,7 @@ public class Topic {
 			this.previous.put(previous, new Vector<String>());
 		}
 		this.previous.get(previous).add(pattern);
+		this.sortedPrevious = null;
 	}
 
 	/**
@@ -354,9 +488,13 @@ public class Topic {
 	}
 
 	/**
-	 * Get a list of all the %Previous keys.
+	 * Get a list of all the %Previous keys, in sort order once sortPrevious()
+	 * has been called.
 	 */
 	public String[] listPrevious () {
+		if (sortedPrevious != null) {
+			return sortedPrevious;
+		}
 		Vector<String> vector = new Vector<String>();
 		Iterator sit = previous.keySet().iterator();
 		while (sit.hasNext()) {
@@ -371,7 +509,6 @@ public class Topic {
 	 * @param previous The %Previous pattern.
 	 */
 	public String[] listPreviousTriggers (String previous) {
-		// TODO return sorted list
 		if (this.previous.containsKey(previous)) {
 			return com.rivescript.Util.Sv2s(this.previous.get(previous));
 		}
@@ -407,8 +544,23 @@ public class Topic {
 			}
 		}
 
-		// TODO: we need to sort the triggers but ah well
+		// Sort the %Previous's and the triggers under each of them like any
+		// other triggers, so the most specific one is tried first. They come
+		// out of hash maps, so put them in a fixed order to begin with.
+		Vector<String> keys = new Vector<String>(prev2trig.keySet());
+		Collections.sort(keys);
+		Vector<String> order = new Vector<String>();
+		sortLevel(com.rivescript.Util.Sv2s(keys), -1, order);
+		for (int i = 0; i < order.size(); i++) {
+			Vector<String> patterns = prev2trig.get(order.get(i));
+			Collections.sort(patterns);
+			Vector<String> sorted = new Vector<String>();
+			sortLevel(com.rivescript.Util.Sv2s(patterns), -1, sorted);
+			prev2trig.put(order.get(i), sorted);
+		}
+
 		this.previous = prev2trig;
+		this.sortedPrevious = com.rivescript.Util.Sv2s(order);
 	}
 
 	/**
@@ -469,6 +621,32 @@ public class Topic {
 		return com.rivescript.Util.Sv2s(this.inherits);
 	}
 
+	/**
+	 * Add the triggers, %Previous's, includes and inherits of another topic
+	 * to this one, after the ones it already has.
+	 *
+	 * @param other The topic to merge in.
+	 */
+	public void merge (Topic other) {
+		this.includes.addAll(other.includes);
+		this.inherits.addAll(other.inherits);
+
+		Iterator<String> it = other.triggers.keySet().iterator();
+		while (it.hasNext()) {
+			String pattern = it.next();
+			trigger(pattern).merge(other.triggers.get(pattern));
+		}
+
+		it = other.previous.keySet().iterator();
+		while (it.hasNext()) {
+			String previous = it.next();
+			Vector<String> patterns = other.previous.get(previous);
+			for (int i = 0; i < patterns.size(); i++) {
+				addPrevious(patterns.get(i), previous);
+			}
+		}
+	}
+
 	/**
 	 * Print a line of debug text to the terminal when the static "debug" is true.
 	 *
@@ -90,6 +90,19 @@ public class TopicManager {
 		return result;
 	}
 
+	/**
+	 * Add the topics of another topic manager to this one, in the order they
+	 * were made there. Topics that already exist here are merged into.
+	 *
+	 * @param other The topic manager to merge in.
+	 */
+	public void merge (TopicManager other) {
+		for (int i = 0; i < other.vTopics.size(); i++) {
+			String name = other.vTopics.get(i);
+			topic(name).merge(other.topics.get(name));
+		}
+	}
+
 	/**
 	 * Sort the replies in all the topics. This will build trigger lists of
 	 * the topics (taking into account topic inheritence/includes) and sending
@@ -0,0 +1,316 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * A matching strategy that compiles a topic's triggers into a trie of words.
+ *
+ * Plain words are edges keyed by their Vocabulary ID and found by a binary
+ * search; wildcards, alternatives, optionals and arrays are special edges that
+ * are tried in turn. One walk over the words
+ * of the message finds the trigger with the best sort priority, so the cost
+ * grows with the length of the message rather than the number of triggers.
+ *
+ * Triggers that can't be broken down into words (see WordPattern), and
+ * messages that aren't canonical, fall back to a RegexMatcher.
+ */
+
+public class TrieMatcher implements TriggerMatcher {
+	// What the walk last went past (see walk()).
+	private static final int AFTER_ITEM     = 0; // A word, wildcard or alternatives, or nothing yet
+	private static final int AFTER_OPTIONAL = 1; // An optional that matched some words
+	private static final int AFTER_SKIP     = 2; // Optionals that matched nothing, after a word
+
+	private final Node root = new Node();
+	private final Vocabulary vocabulary; // IDs of the trigger words
+	private final RegexMatcher fallback; // Static triggers that aren't in the trie
+	private final RegexMatcher regexp;   // All static triggers, for odd messages
+	private final int maxStars;          // Most stars captured by any trigger
+
+	/**
+	 * A node in the trie.
+	 */
+	private static class Node {
+		int[] words = new int [0];  // IDs of the plain word edges, sorted
+		Node[] next = new Node [0]; // Nodes for the plain word edges
+		Vector<WordPattern.Item> specials = new Vector<WordPattern.Item>(); // Other edges
+		Vector<Node> children = new Vector<Node>(); // Nodes for the special edges
+		int terminal = Integer.MAX_VALUE; // Sort index of the trigger ending here
+		int min      = Integer.MAX_VALUE; // Lowest sort index at or below this node
+
+		/**
+		 * Follow the edge for a word, or return null if there isn't one.
+		 */
+		Node word (int id) {
+			int i = Arrays.binarySearch(words, id);
+			return (i < 0) ? null : next[i];
+		}
+
+		/**
+		 * Follow the edge for a word, adding it if it isn't there.
+		 */
+		Node addWord (int id) {
+			int i = Arrays.binarySearch(words, id);
+			if (i >= 0) {
+				return next[i];
+			}
+			i = -i - 1;
+			int[] words = new int [ this.words.length + 1 ];
+			Node[] next = new Node [ this.next.length + 1 ];
+			System.arraycopy(this.words, 0, words, 0, i);
+			System.arraycopy(this.next, 0, next, 0, i);
+			System.arraycopy(this.words, i, words, i + 1, this.words.length - i);
+			System.arraycopy(this.next, i, next, i + 1, this.next.length - i);
+			words[i] = id;
+			next[i] = new Node();
+			this.words = words;
+			this.next = next;
+			return next[i];
+		}
+	}
+
+	/**
+	 * State for one walk through the trie.
+	 */
+	private static class Search {
+		MessageTokens tokens; // The message
+		String[] words;  // Words of the message
+		int[] ids;       // Their vocabulary IDs
+		int[] stars;     // Start and end offset of each star on the current path
+		int best = Integer.MAX_VALUE;
+		int[] bestStars = new int [0];
+	}
+
+	/**
+	 * Build the trie for a compiled sort buffer.
+	 *
+	 * @param triggers   The topic's compiled sort buffer.
+	 * @param vocabulary The vocabulary the word patterns were parsed with.
+	 */
+	public TrieMatcher (CompiledTrigger[] triggers, Vocabulary vocabulary) {
+		this.vocabulary = vocabulary;
+		CompiledTrigger[] rest = new CompiledTrigger [ triggers.length ];
+		int maxStars = 0;
+		for (int i = 0; i < triggers.length; i++) {
+			WordPattern pattern = triggers[i].words();
+			if (pattern == null) {
+				rest[i] = triggers[i];
+				continue;
+			}
+			add(pattern, i);
+			if (pattern.starCount() > maxStars) {
+				maxStars = pattern.starCount();
+			}
+		}
+		this.maxStars = maxStars;
+		this.fallback = new RegexMatcher(rest);
+		this.regexp   = new RegexMatcher(triggers);
+	}
+
+	/**
+	 * Add a trigger's word pattern to the trie.
+	 */
+	private void add (WordPattern pattern, int index) {
+		Node node = root;
+		node.min = Math.min(node.min, index);
+
+		WordPattern.Item[] items = pattern.items();
+		for (int i = 0; i < items.length; i++) {
+			WordPattern.Item item = items[i];
+			Node next;
+			if (item.type == WordPattern.WORD) {
+				next = node.addWord(item.id);
+			}
+			else {
+				int edge = node.specials.indexOf(item);
+				if (edge > -1) {
+					next = node.children.get(edge);
+				}
+				else {
+					next = new Node();
+					node.specials.add(item);
+					node.children.add(next);
+				}
+			}
+			node = next;
+			node.min = Math.min(node.min, index);
+		}
+		node.terminal = Math.min(node.terminal, index);
+	}
+
+	public TriggerMatch match (MessageTokens message) {
+		if (!message.canonical()) {
+			// Not a canonical message, leave it to the regexps.
+			return regexp.match(message);
+		}
+		Search search = new Search();
+		search.tokens = message;
+		search.words = message.words();
+		search.ids = message.ids(vocabulary);
+		search.stars = new int [ maxStars * 2 ];
+		walk(search, root, 0, 0, AFTER_ITEM);
+
+		// A trigger the trie doesn't know about may still sort ahead of its match.
+		TriggerMatch other = fallback.match(message, search.best);
+		if (other != null) {
+			return other;
+		}
+		if (search.best == Integer.MAX_VALUE) {
+			return null;
+		}
+		return new TriggerMatch(search.best, message.message(), search.bestStars);
+	}
+
+	/**
+	 * Walk the trie from a node, at a position in the message.
+	 *
+	 * The special edges try their choices in the same order as the trigger's
+	 * regexp would (alternatives left to right, wildcards shortest first), so
+	 * the first path to reach a trigger has the same stars the regexp finds.<p>
+	 *
+	 * An optional takes the spaces around it into its regexp, and when it
+	 * matches nothing it leaves the space before the next word alone. So a
+	 * wildcard right after optionals that were skipped starts at that space,
+	 * unless there was no word before them or an optional before them took it
+	 * (see skip()).
+	 *
+	 * @param search The search state.
+	 * @param node   The current node.
+	 * @param pos    The index of the next word in the message.
+	 * @param stars  The number of stars captured on the way here.
+	 * @param after  What the walk last went past (AFTER_ITEM etc.)
+	 */
+	private void walk (Search search, Node node, int pos, int stars, int after) {
+		// Nothing down here can beat what we already found.
+		if (node.min >= search.best) {
+			return;
+		}
+
+		String[] words = search.words;
+		if (pos == words.length && node.terminal < search.best) {
+			search.best = node.terminal;
+			search.bestStars = new int [ stars * 2 ];
+			System.arraycopy(search.stars, 0, search.bestStars, 0, stars * 2);
+		}
+
+		// Plain words.
+		if (pos < words.length && node.words.length > 0) {
+			Node next = node.word(search.ids[pos]);
+			if (next != null) {
+				walk(search, next, pos + 1, stars, AFTER_ITEM);
+			}
+		}
+
+		// Everything else.
+		for (int e = 0; e < node.specials.size(); e++) {
+			WordPattern.Item item = node.specials.get(e);
+			Node next = node.children.get(e);
+			if (next.min >= search.best) {
+				continue;
+			}
+
+			switch (item.type) {
+				case WordPattern.STAR:
+					for (int end = pos + 1; end <= words.length; end++) {
+						capture(search, next, pos, end, stars, after == AFTER_SKIP);
+					}
+					break;
+				case WordPattern.POUND:
+					if (pos < words.length && WordPattern.isNumber(words[pos])) {
+						capture(search, next, pos, pos + 1, stars, false);
+					}
+					break;
+				case WordPattern.UNDER:
+					if (pos < words.length && WordPattern.isLetters(words[pos])) {
+						capture(search, next, pos, pos + 1, stars, false);
+					}
+					break;
+				case WordPattern.ALTERNATIVES:
+					for (int c = 0; c < item.ids.length; c++) {
+						int[] choice = item.ids[c];
+						if (WordPattern.matchesAt(choice, search.ids, pos)) {
+							if (item.capture) {
+								capture(search, next, pos, pos + choice.length, stars, false);
+							}
+							else {
+								walk(search, next, pos + choice.length, stars, AFTER_ITEM);
+							}
+						}
+					}
+					break;
+				case WordPattern.OPTIONAL:
+					for (int c = 0; c < item.ids.length; c++) {
+						int[] choice = item.ids[c];
+						if (choice == WordPattern.ANY_IDS) {
+							for (int end = pos + 1; end <= words.length; end++) {
+								walk(search, next, end, stars, AFTER_OPTIONAL);
+							}
+						}
+						else if (WordPattern.matchesAt(choice, search.ids, pos)) {
+							walk(search, next, pos + choice.length, stars, AFTER_OPTIONAL);
+						}
+					}
+					walk(search, next, pos, stars, skip(item, pos, after));
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Work out what the walk last went past once it skips an optional.
+	 *
+	 * A skipped optional leaves the space before the next word alone, except
+	 * one with a * choice: that can match just the space instead.
+	 *
+	 * @param item  The optional.
+	 * @param pos   The index of the next word in the message.
+	 * @param after What the walk went past before the optional.
+	 */
+	private static int skip (WordPattern.Item item, int pos, int after) {
+		if (pos == 0) {
+			return after;
+		}
+		if (item.any) {
+			return AFTER_OPTIONAL;
+		}
+		return (after == AFTER_ITEM) ? AFTER_SKIP : after;
+	}
+
+	/**
+	 * Record a star on the current path and keep walking.
+	 *
+	 * @param start The first word of the star.
+	 * @param end   The word after its last.
+	 * @param space Whether it starts at the space before its first word.
+	 */
+	private void capture (Search search, Node next, int start, int end, int stars, boolean space) {
+		search.stars[stars * 2]     = search.tokens.start(start) - (space ? 1 : 0);
+		search.stars[stars * 2 + 1] = search.tokens.end(end - 1);
+		walk(search, next, end, stars + 1, AFTER_ITEM);
+	}
+}
@@ -26,7 +26,10 @@ package com.rivescript;
 
 import java.lang.String;
 import java.util.Enumeration;
+import java.util.Random;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A trigger class for RiveScript.
@@ -40,7 +43,30 @@ public class Trigger {
 	private Vector<String> redirect  = new Vector<String>(); // @Redirect
 	private Vector<String> reply     = new Vector<String>(); // -Reply
 	private Vector<String> condition = new Vector<String>(); // *Condition
+	private Vector<Condition> parsed = new Vector<Condition>(); // Conditions that parsed
+	private volatile Condition[] conditions = null; // Parsed conditions, as of the last sort
 	private boolean previous         = false;
+	private String file              = null; // Where the trigger was defined
+	private int line                 = 0;
+	private boolean pure             = false; // Whether the reply only depends on the stars
+
+	private volatile Weights weights = null;  // Weights of the replies, as of the last sort
+
+	private static final Pattern reWeight = Pattern.compile("\\{weight=(\\d+?)\\}");
+
+	/**
+	 * Running totals of the weights of the redirects and then the replies.
+	 * It's never changed once made, so threads picking replies can share it.
+	 */
+	private static class Weights {
+		final int[] totals;
+		final boolean weighted; // Whether any weight isn't 1
+
+		Weights (int[] totals, boolean weighted) {
+			this.totals   = totals;
+			this.weighted = weighted;
+		}
+	}
 
 	/**
 	 * Create a new trigger object.
@@ -59,6 +85,13 @@ public class Trigger {
 		return this.inTopic;
 	}
 
+	/**
+	 * Get the pattern of the trigger.
+	 */
+	public String pattern () {
+		return this.pattern;
+	}
+
 	/**
 	 * Flag that this trigger is paired with a %Previous (and shouldn't be sorted
 	 * with the other triggers for reply matching purposes).
@@ -76,6 +109,51 @@ public class Trigger {
 		return this.previous;
 	}
 
+	/**
+	 * Record where the trigger was defined.
+	 *
+	 * @param file The file name.
+	 * @param line The line number in the file.
+	 */
+	public void setSource (String file, int line) {
+		this.file = file;
+		this.line = line;
+	}
+
+	/**
+	 * Get the name of the file the trigger was defined in, or null if it
+	 * isn't known.
+	 */
+	public String file () {
+		return this.file;
+	}
+
+	/**
+	 * Get the line the trigger was defined on, or 0 if it isn't known.
+	 */
+	public int line () {
+		return this.line;
+	}
+
+	/**
+	 * Flag whether the reply to this trigger depends only on the stars it
+	 * matched, so it can be cached. This is worked out by sortReplies() in the
+	 * RiveScriptEngine, and cleared whenever the trigger changes.
+	 *
+	 * @param pure Whether the reply only depends on the stars.
+	 */
+	public void setPure (boolean pure) {
+		this.pure = pure;
+	}
+
+	/**
+	 * Test whether the reply to this trigger depends only on the stars it
+	 * matched.
+	 */
+	public boolean isPure () {
+		return this.pure;
+	}
+
 	/**
 	 * Add a new reply to a trigger.
 	 *
@@ -83,6 +161,8 @@ public class Trigger {
 	 */
 	public void addReply (String reply) {
 		this.reply.add(reply);
+		this.pure = false;
+		this.weights = null;
 	}
 
 	/**
@@ -99,6 +179,8 @@ public class Trigger {
 	 */
 	public void addRedirect (String meant) {
 		this.redirect.add(meant);
+		this.pure = false;
+		this.weights = null;
 	}
 
 	/**
@@ -108,13 +190,155 @@ public class Trigger {
 		return Sv2s (redirect);
 	}
 
+	/**
+	 * Count the redirections under this trigger.
+	 */
+	public int countRedirects () {
+		return this.redirect.size();
+	}
+
+	/**
+	 * Get one of the redirects.
+	 *
+	 * @param index The index of the redirect, from 0.
+	 */
+	public String getRedirect (int index) {
+		return this.redirect.get(index);
+	}
+
+	/**
+	 * Get one of the replies.
+	 *
+	 * @param index The index of the reply, from 0.
+	 */
+	public String getReply (int index) {
+		return this.reply.get(index);
+	}
+
+	/**
+	 * Pick one of the redirects or replies at random, taking their weights into
+	 * account. A redirect or reply with {weight=N} is N times as likely to be
+	 * picked as one with no weight (or a weight of 0 or 1).
+	 *
+	 * @param rand The random number generator.
+	 * @return The index of a redirect, or of a reply plus the number of
+	 *         redirects, or -1 if there are neither.
+	 */
+	public int chooseReply (Random rand) {
+		Weights weights = this.weights;
+		if (weights == null) {
+			// Changed since the replies were sorted.
+			weights = sumWeights();
+		}
+		int[] totals = weights.totals;
+		int total = (totals.length == 0) ? 0 : totals[ totals.length - 1 ];
+		if (total == 0) {
+			return -1;
+		}
+
+		int pick = rand.nextInt(total);
+		if (!weights.weighted) {
+			return pick;
+		}
+
+		// Find the first running total above the pick.
+		int low  = 0;
+		int high = totals.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (totals[mid] > pick) {
+				high = mid;
+			}
+			else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Work out the weights of the redirects and replies and parse the
+	 * conditions ahead of time, so replies can be picked without changing
+	 * the trigger. This is called by sortReplies() in the RiveScriptEngine.
+	 */
+	public void prepare () {
+		this.weights    = sumWeights();
+		this.conditions = this.parsed.toArray(new Condition [0]);
+	}
+
+	/**
+	 * Work out the running totals of the weights of the redirects and replies.
+	 */
+	private Weights sumWeights () {
+		int[] weights = new int [ this.redirect.size() + this.reply.size() ];
+		boolean weighted = false;
+		int total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			String text = (i < this.redirect.size()) ? this.redirect.get(i) : this.reply.get(i - this.redirect.size());
+			int weight = weight(text);
+			if (weight != 1) {
+				weighted = true;
+			}
+			total += weight;
+			weights[i] = total;
+		}
+		return new Weights(weights, weighted);
+	}
+
+	/**
+	 * Get the weight of a redirect or reply (only the first {weight} tag counts).
+	 *
+	 * @param text The redirect or reply.
+	 */
+	private static int weight (String text) {
+		if (text.indexOf("{weight=") > -1) {
+			Matcher mWeight = reWeight.matcher(text);
+			if (mWeight.find()) {
+				return Math.max(Integer.parseInt(mWeight.group(1)), 1);
+			}
+		}
+		return 1;
+	}
+
 	/**
 	 * Add a new condition to a trigger.
 	 *
 	 * @param condition The conditional line.
+	 * @return Whether the condition could be parsed; if it can't, it's never true.
 	 */
-	public void addCondition (String condition) {
+	public boolean addCondition (String condition) {
 		this.condition.add(condition);
+		this.pure = false;
+
+		Condition parsed = Condition.parse(condition);
+		if (parsed == null) {
+			return false;
+		}
+		this.parsed.add(parsed);
+		this.conditions = null;
+		return true;
+	}
+
+	/**
+	 * Add everything from another trigger with the same pattern to this one,
+	 * as if its lines had come after this trigger's.
+	 *
+	 * @param other The trigger to take the replies, redirects and conditions from.
+	 */
+	public void merge (Trigger other) {
+		if (other.previous) {
+			this.previous = true;
+		}
+		if (other.file != null) {
+			setSource(other.file, other.line);
+		}
+		this.reply.addAll(other.reply);
+		this.redirect.addAll(other.redirect);
+		this.condition.addAll(other.condition);
+		this.parsed.addAll(other.parsed);
+		this.conditions = null;
+		this.pure = false;
+		this.weights = null;
 	}
 
 	/**
@@ -124,6 +348,18 @@ public class Trigger {
 		return Sv2s (condition);
 	}
 
+	/**
+	 * Get the parsed conditions of this trigger, in order.
+	 */
+	public Condition[] conditions () {
+		Condition[] conditions = this.conditions;
+		if (conditions == null) {
+			// Changed since the replies were sorted.
+			conditions = this.parsed.toArray(new Condition [0]);
+		}
+		return conditions;
+	}
+
 	/*---------------------*/
 	/*-- Utility Methods --*/
 	/*---------------------*/
@@ -0,0 +1,97 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.regex.Matcher;
+
+/**
+ * The result of matching a message against a topic's sort buffer: the index
+ * of the trigger that matched, and the spans of the message its wildcards
+ * captured. The text of a star isn't cut out of the message until it's asked
+ * for.
+ */
+
+public class TriggerMatch {
+	private final int index;      // Index in the compiled sort buffer
+	private final String message; // The message that was matched
+	private final int[] spans;    // Start and end offsets of each star, -1 if unset
+
+	/**
+	 * Create a match result.
+	 *
+	 * @param index   The index of the trigger in the compiled sort buffer.
+	 * @param message The formatted message that was matched.
+	 * @param spans   The start and end offset of each star, in pairs.
+	 */
+	public TriggerMatch (int index, String message, int[] spans) {
+		this.index   = index;
+		this.message = message;
+		this.spans   = spans;
+	}
+
+	/**
+	 * Create a match result from a successful regular expression match.
+	 *
+	 * @param index The index of the trigger in the compiled sort buffer.
+	 * @param m     The matcher that found the match.
+	 */
+	public TriggerMatch (int index, Matcher m) {
+		this.index   = index;
+		this.message = m.group(0);
+		this.spans   = new int [ m.groupCount() * 2 ];
+		for (int i = 0; i < m.groupCount(); i++) {
+			spans[i * 2]     = m.start(i + 1);
+			spans[i * 2 + 1] = m.end(i + 1);
+		}
+	}
+
+	/**
+	 * The index of the trigger in the topic's compiled sort buffer.
+	 */
+	public int index () {
+		return this.index;
+	}
+
+	/**
+	 * The number of stars (wildcards and alternatives) the trigger captured.
+	 */
+	public int starCount () {
+		return spans.length / 2;
+	}
+
+	/**
+	 * Get the text of a star. Returns null if that part of the trigger didn't
+	 * take part in the match.
+	 *
+	 * @param star The number of the star, starting at 1 (as in <star1>).
+	 */
+	public String star (int star) {
+		int start = spans[(star - 1) * 2];
+		if (start < 0) {
+			return null;
+		}
+		return message.substring(start, spans[(star - 1) * 2 + 1]);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+/**
+ * Interface for the strategies that find which trigger in a topic's sort
+ * buffer matches a message.
+ *
+ * A matcher is built by sortReplies() for one topic and only looks at the
+ * static triggers in it; triggers with <bot>, <get>, <input> or <reply> tags
+ * are filled in and tested by the RiveScriptEngine itself.
+ */
+
+public interface TriggerMatcher {
+	/**
+	 * Find the static trigger with the highest sort priority (the lowest index
+	 * in the topic's compiled sort buffer) that matches the message. Returns
+	 * null if none of them match.
+	 *
+	 * @param message The words of the formatted message.
+	 */
+	public TriggerMatch match (MessageTokens message);
+}
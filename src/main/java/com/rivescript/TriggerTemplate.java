@@ -0,0 +1,201 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A trigger that depends on the user's data, with the static parts of its
+ * regexp worked out ahead of time.
+ *
+ * The tags that need user data (&lt;bot&gt;, &lt;get&gt;, &lt;input&gt; and
+ * &lt;reply&gt;) become slots between pieces of regexp. At match time the
+ * engine fills the slots in, and the resulting regexp is compiled once and
+ * kept in a small cache keyed by its text, since the values rarely change
+ * between messages. A trigger that is only words and slots (e.g. "my name is
+ * &lt;bot name&gt;") is compared as a plain string instead.
+ */
+
+public class TriggerTemplate {
+	// Slot types.
+	public static final int BOT   = 0; // <bot name>
+	public static final int GET   = 1; // <get name>
+	public static final int INPUT = 2; // <input1> to <input9>
+	public static final int REPLY = 3; // <reply1> to <reply9>
+
+	// Compiled regexps to keep per template.
+	private static final int CACHE_SIZE = 16;
+
+	private static final Pattern reSlot = Pattern.compile("<(bot|get) (.+?)>|<(input|reply)([0-9]?)>");
+
+	private final String[] pieces; // Regexp text around the slots (one more than there are slots)
+	private final int[] types;     // Type of each slot
+	private final String[] names;  // Variable name (or history index) of each slot
+	private final boolean literal; // No regexp syntax outside of the slots
+
+	private final Map<String, Pattern> cache = new LinkedHashMap<String, Pattern>(CACHE_SIZE, 0.75f, true) {
+		protected boolean removeEldestEntry (Map.Entry<String, Pattern> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private TriggerTemplate (String[] pieces, int[] types, String[] names) {
+		this.pieces = pieces;
+		this.types  = types;
+		this.names  = names;
+
+		boolean literal = true;
+		for (String piece : pieces) {
+			for (int i = 0; i < piece.length(); i++) {
+				char c = piece.charAt(i);
+				if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == ' ')) {
+					literal = false;
+				}
+			}
+		}
+		this.literal = literal;
+	}
+
+	/**
+	 * Pull the slots out of a trigger. Returns the trigger text with each slot
+	 * swapped for a placeholder, which is safe to run through the conversion
+	 * to a regexp; pass the result of that to build().
+	 *
+	 * @param trigger The raw trigger text.
+	 * @param types   Receives the type of each slot.
+	 * @param names   Receives the variable name of each slot.
+	 */
+	public static String extract (String trigger, Vector<Integer> types, Vector<String> names) {
+		StringBuffer text = new StringBuffer();
+		Matcher m = reSlot.matcher(trigger);
+		while (m.find()) {
+			if (m.group(1) != null) {
+				types.add(m.group(1).equals("bot") ? BOT : GET);
+				names.add(m.group(2));
+			}
+			else {
+				types.add(m.group(3).equals("input") ? INPUT : REPLY);
+				names.add(m.group(4).length() > 0 ? m.group(4) : "1");
+			}
+			m.appendReplacement(text, placeholder(types.size() - 1));
+		}
+		m.appendTail(text);
+		return text.toString();
+	}
+
+	/**
+	 * Build a template from the regexp of a trigger that went through
+	 * extract().
+	 *
+	 * @param regexp The regexp, with placeholders for the slots.
+	 * @param types  The type of each slot.
+	 * @param names  The variable name of each slot.
+	 */
+	public static TriggerTemplate build (String regexp, Vector<Integer> types, Vector<String> names) {
+		String[] pieces = new String [ types.size() + 1 ];
+		int[] slots = new int [ types.size() ];
+		int start = 0;
+		for (int i = 0; i < slots.length; i++) {
+			int at = regexp.indexOf(placeholder(i), start);
+			pieces[i] = regexp.substring(start, at);
+			start = at + placeholder(i).length();
+			slots[i] = types.get(i);
+		}
+		pieces[ slots.length ] = regexp.substring(start);
+		return new TriggerTemplate(pieces, slots, Util.Sv2s(names));
+	}
+
+	private static String placeholder (int index) {
+		return "\u0000" + index + "\u0000";
+	}
+
+	/**
+	 * Get the number of slots.
+	 */
+	public int slots () {
+		return this.types.length;
+	}
+
+	/**
+	 * Get the type of a slot.
+	 */
+	public int type (int slot) {
+		return this.types[slot];
+	}
+
+	/**
+	 * Get the variable name of a slot. For input and reply slots, this is the
+	 * index into the user's history.
+	 */
+	public String name (int slot) {
+		return this.names[slot];
+	}
+
+	/**
+	 * Fill the slots in to get the trigger's regexp.
+	 *
+	 * @param values The value of each slot.
+	 */
+	public String regexp (String[] values) {
+		StringBuilder regexp = new StringBuilder(pieces[0]);
+		for (int i = 0; i < values.length; i++) {
+			regexp.append(values[i]).append(pieces[i + 1]);
+		}
+		return regexp.toString();
+	}
+
+	/**
+	 * Match a message against the trigger with its slots filled in.
+	 *
+	 * @param index   The trigger's index in the sort buffer.
+	 * @param message The formatted message.
+	 * @param values  The value of each slot.
+	 * @return The match, or null.
+	 */
+	public TriggerMatch match (int index, String message, String[] values) {
+		String regexp = regexp(values);
+		if (literal) {
+			return message.equals(regexp) ? new TriggerMatch(index, message, new int [0]) : null;
+		}
+
+		Pattern re;
+		synchronized (cache) {
+			re = cache.get(regexp);
+			if (re == null) {
+				re = Pattern.compile("^" + regexp + "$");
+				cache.put(regexp, re);
+			}
+		}
+		Matcher m = re.matcher(message);
+		if (m.find()) {
+			return new TriggerMatch(index, m);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * A table of every plain word in the bot's triggers and arrays, each with a
+ * small int ID (0, 1, 2...). sortReplies() builds one and the word matchers
+ * compare IDs instead of strings: each word of a message is looked up once,
+ * and a word that isn't in the table gets UNKNOWN, which matches nothing.<p>
+ *
+ * The table also keeps one String per word, which the word patterns share
+ * instead of holding copies of their own.
+ */
+
+public class Vocabulary {
+	/**
+	 * The ID of a word that isn't in the vocabulary.
+	 */
+	public static final int UNKNOWN = -1;
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>(); // Word -> ID
+	private final Vector<String> words = new Vector<String>(); // ID -> word
+
+	/**
+	 * Add a word, if it isn't there yet.
+	 *
+	 * @param word The word.
+	 * @return Its ID.
+	 */
+	public int add (String word) {
+		Integer id = ids.get(word);
+		if (id == null) {
+			id = words.size();
+			ids.put(word, id);
+			words.add(word);
+		}
+		return id;
+	}
+
+	/**
+	 * Get the ID of a word, or UNKNOWN.
+	 *
+	 * @param word The word.
+	 */
+	public int id (String word) {
+		Integer id = ids.get(word);
+		return (id == null) ? UNKNOWN : id;
+	}
+
+	/**
+	 * Get the word with an ID.
+	 *
+	 * @param id The ID.
+	 */
+	public String word (int id) {
+		return words.get(id);
+	}
+
+	/**
+	 * The number of words.
+	 */
+	public int size () {
+		return words.size();
+	}
+
+	/**
+	 * Look up the IDs of a sequence of words.
+	 *
+	 * @param words The words.
+	 * @return Their IDs, with UNKNOWN for the words that aren't there.
+	 */
+	public int[] encode (String[] words) {
+		int[] encoded = new int [ words.length ];
+		for (int i = 0; i < words.length; i++) {
+			encoded[i] = id(words[i]);
+		}
+		return encoded;
+	}
+}
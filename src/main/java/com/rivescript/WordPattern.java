@@ -0,0 +1,472 @@
+/*
+	com.rivescript.RiveScript - The Official Java RiveScript Interpreter
+
+	Copyright (c) 2016 Noah Petherbridge
+
+	Permission is hereby granted, free of charge, to any person obtaining a copy
+	of this software and associated documentation files (the "Software"), to deal
+	in the Software without restriction, including without limitation the rights
+	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+	copies of the Software, and to permit persons to whom the Software is
+	furnished to do so, subject to the following conditions:
+
+	The above copyright notice and this permission notice shall be included in all
+	copies or substantial portions of the Software.
+
+	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+	SOFTWARE.
+*/
+
+package com.rivescript;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+/**
+ * A trigger broken down into a sequence of whole-word items, for the matchers
+ * that work on the words of a message instead of its characters.
+ *
+ * Only triggers whose regexp can only ever match at word boundaries can be
+ * broken down this way: plain words, the *, # and _ wildcards, (alternatives),
+ * [optionals] made of plain words or a *, and @arrays of plain words. Anything
+ * else (punctuation, wildcards stuck to words, etc.) is left to the regexp.
+ *
+ * Matching works on a "canonical" message: one or more words of [a-z0-9],
+ * separated by single spaces. On such a message, matching the items in order
+ * (trying alternatives in the order given and wildcards from shortest to
+ * longest) finds the same match and the same stars as the trigger's regexp.
+ *
+ * Each plain word of the pattern is also added to the bot's Vocabulary, and
+ * the items keep the IDs of their words, so the matchers can compare words
+ * of a message by ID.
+ */
+
+public class WordPattern {
+	// Item types.
+	public static final int WORD         = 0; // A plain word
+	public static final int STAR         = 1; // * (one or more words)
+	public static final int POUND        = 2; // # (one word of digits)
+	public static final int UNDER        = 3; // _ (one word of letters)
+	public static final int ALTERNATIVES = 4; // (a|b c) or @array, exactly one of them
+	public static final int OPTIONAL     = 5; // [a|b c|*], one of them or nothing
+
+	// A choice inside an [optional] that matches one or more words of anything.
+	public static final String[] ANY = { "*" };
+	public static final int[] ANY_IDS = { Vocabulary.UNKNOWN };
+
+	private final Item[] items;
+	private final int stars;
+	private final int minWords; // Fewest words the pattern can match
+	private final int maxWords; // Most words it can match (Integer.MAX_VALUE if unbounded)
+
+	/**
+	 * One element of a word pattern.
+	 */
+	public static class Item {
+		public final int type;            // Item type
+		public final String word;         // The word, for WORD items
+		public final String[][] choices;  // The word sequences, for ALTERNATIVES and OPTIONAL
+		public final boolean capture;     // Whether it fills in a <star>
+		public final int id;              // The ID of the word, for WORD items
+		public final int[][] ids;         // The IDs of the words of each choice
+		public final boolean any;         // Whether one of the choices is ANY
+
+		public Item (int type, String word, String[][] choices, boolean capture, Vocabulary vocabulary) {
+			this.type    = type;
+			this.capture = capture;
+			this.id      = (word == null) ? Vocabulary.UNKNOWN : vocabulary.add(word);
+			this.word    = (word == null) ? null : vocabulary.word(id);
+			this.choices = choices;
+			this.ids     = (choices == null) ? null : new int [ choices.length ][];
+			boolean any = false;
+			for (int c = 0; choices != null && c < choices.length; c++) {
+				if (choices[c] == ANY) {
+					ids[c] = ANY_IDS;
+					any = true;
+					continue;
+				}
+				ids[c] = new int [ choices[c].length ];
+				for (int w = 0; w < choices[c].length; w++) {
+					ids[c][w] = vocabulary.add(choices[c][w]);
+					choices[c][w] = vocabulary.word(ids[c][w]);
+				}
+			}
+			this.any = any;
+		}
+
+		@Override
+		public boolean equals (Object other) {
+			if (!(other instanceof Item)) {
+				return false;
+			}
+			Item item = (Item) other;
+			return type == item.type && capture == item.capture
+				&& (word == null ? item.word == null : word.equals(item.word))
+				&& java.util.Arrays.deepEquals(choices, item.choices);
+		}
+
+		@Override
+		public int hashCode () {
+			return type * 31 + (word == null ? 0 : word.hashCode()) + java.util.Arrays.deepHashCode(choices);
+		}
+	}
+
+	private WordPattern (Item[] items) {
+		this.items = items;
+
+		int stars = 0;
+		long min = 0, max = 0;
+		for (int i = 0; i < items.length; i++) {
+			if (items[i].capture) {
+				stars++;
+			}
+
+			// Count the words each item can take.
+			switch (items[i].type) {
+				case STAR:
+					min++;
+					max = Integer.MAX_VALUE;
+					break;
+				case ALTERNATIVES:
+				case OPTIONAL:
+					int fewest = Integer.MAX_VALUE, most = 0;
+					for (String[] choice : items[i].choices) {
+						fewest = Math.min(fewest, choice.length);
+						most   = (choice == ANY) ? Integer.MAX_VALUE : Math.max(most, choice.length);
+					}
+					min += (items[i].type == OPTIONAL) ? 0 : fewest;
+					max += most;
+					break;
+				default:
+					min++;
+					max++;
+			}
+		}
+		this.stars = stars;
+		this.minWords = (int) Math.min(min, Integer.MAX_VALUE);
+		this.maxWords = (int) Math.min(max, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The items of the pattern, in order.
+	 */
+	public Item[] items () {
+		return this.items;
+	}
+
+	/**
+	 * The number of <star>s the pattern captures.
+	 */
+	public int starCount () {
+		return this.stars;
+	}
+
+	/**
+	 * The fewest words a message can have and still match the pattern.
+	 */
+	public int minWords () {
+		return this.minWords;
+	}
+
+	/**
+	 * The most words a message can have and still match the pattern, or
+	 * Integer.MAX_VALUE if it has a wildcard that can take any number.
+	 */
+	public int maxWords () {
+		return this.maxWords;
+	}
+
+	/**
+	 * Break a static trigger down into words. Returns null if the trigger has
+	 * anything in it that the word matchers can't handle the same way as its
+	 * regexp would.
+	 *
+	 * @param trigger    The trigger text from the sort buffer.
+	 * @param arrays     The bot's arrays, to expand any @array in the trigger.
+	 * @param vocabulary The vocabulary to add the trigger's words to.
+	 */
+	public static WordPattern parse (String trigger, HashMap<String, Vector<String>> arrays, Vocabulary vocabulary) {
+		String text = trigger.replaceAll("\\{weight=\\d+\\}", "");
+		Vector<Item> items = new Vector<Item>();
+		HashSet<String> optionals = new HashSet<String>();
+
+		int i = 0;
+		int n = text.length();
+		while (i < n) {
+			char c = text.charAt(i);
+			int end;
+			Item item;
+			if (c == '[' || c == '(') {
+				// Optionals and alternatives may have spaces in them.
+				end = text.indexOf(c == '[' ? ']' : ')', i);
+				if (end < 0) {
+					return null;
+				}
+				String contents = text.substring(i + 1, end);
+				if (c == '[' && !optionals.add(contents)) {
+					// The regexp is built by replacing the text of each
+					// optional, which rewrites every copy of it at once.
+					return null;
+				}
+				item = (c == '[') ? optional(contents, vocabulary) : alternatives(contents, arrays, vocabulary);
+				end++;
+			}
+			else {
+				end = text.indexOf(' ', i);
+				if (end < 0) {
+					end = n;
+				}
+				item = word(text.substring(i, end), arrays, vocabulary);
+			}
+			if (item == null) {
+				return null;
+			}
+			items.add(item);
+
+			// Items must be separated by exactly one space.
+			i = end;
+			if (i < n) {
+				if (text.charAt(i) != ' ' || i == n - 1) {
+					return null;
+				}
+				i++;
+			}
+		}
+		if (items.size() == 0) {
+			return null;
+		}
+
+		// A * between two [optionals] can capture nothing but the space between
+		// them in the regexp, which a word can't do.
+		for (int j = 1; j < items.size() - 1; j++) {
+			if (items.get(j).type == STAR && items.get(j - 1).type == OPTIONAL && items.get(j + 1).type == OPTIONAL) {
+				return null;
+			}
+		}
+
+		return new WordPattern(items.toArray(new Item [ items.size() ]));
+	}
+
+	/**
+	 * Parse a single space-delimited part of a trigger.
+	 */
+	private static Item word (String token, HashMap<String, Vector<String>> arrays, Vocabulary vocabulary) {
+		if (token.equals("*")) {
+			return new Item(STAR, null, null, true, vocabulary);
+		}
+		else if (token.equals("#")) {
+			return new Item(POUND, null, null, true, vocabulary);
+		}
+		else if (token.equals("_")) {
+			return new Item(UNDER, null, null, true, vocabulary);
+		}
+		else if (token.startsWith("@")) {
+			String[][] values = array(token.substring(1), arrays);
+			if (values == null) {
+				return null;
+			}
+			return new Item(ALTERNATIVES, null, values, false, vocabulary);
+		}
+		else if (isWord(token)) {
+			return new Item(WORD, token, null, false, vocabulary);
+		}
+		return null;
+	}
+
+	/**
+	 * Parse the inside of an (alternative|group).
+	 */
+	private static Item alternatives (String contents, HashMap<String, Vector<String>> arrays, Vocabulary vocabulary) {
+		// An array in parenthesis captures its value.
+		if (contents.startsWith("@")) {
+			String[][] values = array(contents.substring(1), arrays);
+			if (values == null) {
+				return null;
+			}
+			return new Item(ALTERNATIVES, null, values, true, vocabulary);
+		}
+
+		String[][] choices = words(contents.split("\\|", -1), false);
+		if (choices == null) {
+			return null;
+		}
+		return new Item(ALTERNATIVES, null, choices, true, vocabulary);
+	}
+
+	/**
+	 * Parse the inside of an [optional].
+	 */
+	private static Item optional (String contents, Vocabulary vocabulary) {
+		String[][] choices = words(contents.split("\\|", -1), true);
+		if (choices == null) {
+			return null;
+		}
+		return new Item(OPTIONAL, null, choices, false, vocabulary);
+	}
+
+	/**
+	 * Look up the values of an array as word sequences.
+	 */
+	private static String[][] array (String name, HashMap<String, Vector<String>> arrays) {
+		if (!isWord(name) || !arrays.containsKey(name)) {
+			return null;
+		}
+		Vector<String> values = arrays.get(name);
+		if (values.size() == 0) {
+			return null;
+		}
+		return words(Util.Sv2s(values), false);
+	}
+
+	/**
+	 * Split each choice into its words. Returns null if any choice has anything
+	 * but plain words in it (or a lone * in an optional, if allowed).
+	 */
+	private static String[][] words (String[] choices, boolean any) {
+		String[][] result = new String [ choices.length ][];
+		for (int i = 0; i < choices.length; i++) {
+			if (any && choices[i].equals("*")) {
+				result[i] = ANY;
+				continue;
+			}
+			result[i] = choices[i].split(" ", -1);
+			for (int j = 0; j < result[i].length; j++) {
+				if (!isWord(result[i][j])) {
+					return null;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Test whether a string is a plain word that a canonical message can contain.
+	 */
+	private static boolean isWord (String word) {
+		if (word.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Split a formatted message into words, if it is canonical: only [a-z0-9]
+	 * words separated by single spaces. Returns null otherwise, in which case
+	 * the word matchers have to leave the message to the regexps.
+	 *
+	 * @param message The formatted message.
+	 * @param offsets Receives the start and end offset of each word, in pairs;
+	 *                must have room for at least message.length() + 1 entries.
+	 */
+	public static String[] split (String message, int[] offsets) {
+		int n = message.length();
+		if (n == 0) {
+			return null;
+		}
+
+		Vector<String> words = new Vector<String>();
+		int start = 0;
+		for (int i = 0; i <= n; i++) {
+			char c = (i < n) ? message.charAt(i) : ' ';
+			if (c == ' ') {
+				if (i == start) {
+					// Leading, trailing or doubled space.
+					return null;
+				}
+				offsets[words.size() * 2]     = start;
+				offsets[words.size() * 2 + 1] = i;
+				words.add(message.substring(start, i));
+				start = i + 1;
+			}
+			else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+				return null;
+			}
+		}
+		return Util.Sv2s(words);
+	}
+
+	/**
+	 * Count the words of a formatted message, if it is canonical (see split()).
+	 * Returns -1 otherwise.
+	 *
+	 * @param message The formatted message.
+	 */
+	public static int countWords (String message) {
+		int n = message.length();
+		if (n == 0 || message.charAt(0) == ' ' || message.charAt(n - 1) == ' ') {
+			return -1;
+		}
+
+		int words = 1;
+		for (int i = 0; i < n; i++) {
+			char c = message.charAt(i);
+			if (c == ' ') {
+				if (message.charAt(i - 1) == ' ') {
+					return -1;
+				}
+				words++;
+			}
+			else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+				return -1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Test whether a word is made of digits only (for #).
+	 */
+	public static boolean isNumber (String word) {
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Test whether a word is made of letters only (for _).
+	 */
+	public static boolean isLetters (String word) {
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (c < 'a' || c > 'z') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Test whether a sequence of words appears in the message at a position.
+	 *
+	 * @param choice The IDs of the words to look for.
+	 * @param words  The IDs of the words of the message.
+	 * @param pos    The position to look at.
+	 */
+	public static boolean matchesAt (int[] choice, int[] words, int pos) {
+		if (pos + choice.length > words.length) {
+			return false;
+		}
+		for (int i = 0; i < choice.length; i++) {
+			if (choice[i] != words[pos + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
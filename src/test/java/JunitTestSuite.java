@@ -5,6 +5,7 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
 	TestBegin.class,
 	TestBotVariables.class,
+	TestMatchers.class,
 	TestMath.class,
 	TestOptions.class,
 	TestReplies.class,
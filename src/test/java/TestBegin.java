@@ -1,5 +1,12 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
 import org.junit.Test;
 
+import com.rivescript.SimpleClient;
+
 public class TestBegin extends TestBase {
 	public String replies() {
 		return "begin";
@@ -33,4 +40,19 @@ public class TestBegin extends TestBase {
 		this.uservar("name", "Bob");
 		this.reply("Hello Bot", "Bob: Hello human.");
 	}
+
+	@Test
+	public void testAppendableReply() throws IOException {
+		this.setUp("simple_begin_block.rive");
+		this.rs.getEngine().stream("+ how much\n- It costs $5.");
+		this.rs.getEngine().sortReplies();
+
+		StringWriter out = new StringWriter();
+		this.rs.getEngine().reply(new SimpleClient("localuser"), "Hello bot.", out);
+		assertEquals("Hello human.", out.toString());
+
+		StringBuilder buffer = new StringBuilder("> ");
+		this.rs.getEngine().reply(new SimpleClient("localuser"), "How much?", buffer);
+		assertEquals("> It costs $5.", buffer.toString());
+	}
 }
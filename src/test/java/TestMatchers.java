@@ -0,0 +1,370 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import com.rivescript.CompiledTrigger;
+import com.rivescript.LiteralFilter;
+import com.rivescript.MessageTokens;
+import com.rivescript.RiveScriptEngine;
+import com.rivescript.TriggerMatch;
+import com.rivescript.Vocabulary;
+import com.rivescript.WordPattern;
+
+/**
+ * Check that every trigger matching strategy picks the same trigger, with the
+ * same stars, as the regexps do. The brain is every test fixture plus Aiden,
+ * and the messages are made up from the triggers themselves.
+ */
+public class TestMatchers extends TestBase {
+	private static final String[] STRATEGIES = {
+		RiveScriptEngine.MATCHER_TRIE,
+		RiveScriptEngine.MATCHER_DFA,
+		RiveScriptEngine.MATCHER_GLOB,
+	};
+
+	private Random random = new Random(1);
+
+	private RiveScriptEngine load(String matcher) {
+		RiveScriptEngine engine = new RiveScriptEngine();
+		engine.setMatcher(matcher);
+		engine.loadDirectory("Aiden");
+		for (File dir : new File("src/test/resources/fixtures").listFiles()) {
+			engine.loadDirectory(dir.getPath());
+		}
+		engine.sortReplies();
+		return engine;
+	}
+
+	@Test
+	public void testStrategiesAgree() {
+		RiveScriptEngine expected = load(RiveScriptEngine.MATCHER_REGEX);
+		String[] topics = expected.getTopics().listTopics();
+
+		// Make up some messages from each trigger, and collect their words.
+		Vector<String> messages = new Vector<String>();
+		Vector<String> vocabulary = new Vector<String>();
+		for (String topic : topics) {
+			for (CompiledTrigger trigger : expected.getTopics().topic(topic).listCompiled()) {
+				messages.add(trigger.pattern());
+				if (trigger.words() == null) {
+					continue;
+				}
+				for (WordPattern.Item item : trigger.words().items()) {
+					if (item.type == WordPattern.WORD) {
+						vocabulary.add(item.word);
+					}
+				}
+			}
+		}
+		vocabulary.add("42");
+		for (String topic : topics) {
+			for (CompiledTrigger trigger : expected.getTopics().topic(topic).listCompiled()) {
+				for (int i = 0; trigger.words() != null && i < 5; i++) {
+					messages.add(message(trigger.words(), vocabulary));
+				}
+			}
+		}
+		for (int i = 0; i < 500; i++) {
+			messages.add(words(vocabulary, 1 + random.nextInt(5)));
+		}
+
+		// And some that aren't canonical.
+		int count = messages.size();
+		for (int i = 0; i < count; i += 10) {
+			messages.add(messages.get(i).replaceFirst(" ", "  "));
+			messages.add(messages.get(i) + "!");
+		}
+		messages.add("");
+
+		for (String strategy : STRATEGIES) {
+			RiveScriptEngine engine = load(strategy);
+			for (String topic : topics) {
+				for (String message : messages) {
+					TriggerMatch want = expected.getTopics().topic(topic).match(message);
+					TriggerMatch got  = engine.getTopics().topic(topic).match(message);
+					assertEquals(strategy + " matcher, topic " + topic + ", message \"" + message + "\"",
+						describe(want), describe(got));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testStarCaptureOrder() {
+		String code = "+ * told * about *\n- a\n\n+ my name is *\n- b\n\n+ *\n- c\n";
+		match(code, "alice told bob about the party", "* told * about *, star1=alice, star2=bob, star3=the party");
+		match(code, "alice told bob told carol about x about y", "* told * about *, star1=alice, star2=bob told carol, star3=x about y");
+		match(code, "my name is john smith", "my name is *, star1=john smith");
+		match(code, "told about", "*, star1=told about");
+	}
+
+	@Test
+	public void testAlternativesAndOptionals() {
+		String code = "+ what is your (favorite|most loved) [big] *\n- a\n\n"
+			+ "+ i [really] like (red|blue) [*]\n- b\n\n"
+			+ "+ *\n- c\n";
+		match(code, "what is your most loved big dog", "what is your (favorite|most loved) [big] *, star1=most loved, star2=dog");
+		match(code, "what is your favorite big dog", "what is your (favorite|most loved) [big] *, star1=favorite, star2=dog");
+		match(code, "what is your big dog", "*, star1=what is your big dog");
+		match(code, "i like red", "i [really] like (red|blue) [*], star1=red");
+		match(code, "i really like blue cars a lot", "i [really] like (red|blue) [*], star1=blue");
+		match(code, "i like green", "*, star1=i like green");
+	}
+
+	@Test
+	public void testRepeatedOptional() {
+		// The regexp of a trigger rewrites every copy of an optional at once,
+		// so the words can't stand in for it.
+		java.util.HashMap<String, Vector<String>> arrays = new java.util.HashMap<String, Vector<String>>();
+		assertEquals(null, WordPattern.parse("[22] 1 [22] [1]", arrays, new Vocabulary()));
+		assertEquals(null, WordPattern.parse("[*] # [*] [*]", arrays, new Vocabulary()));
+
+		String code = "! array arr = a|b c\n\n"
+			+ "+ [22] 1 [22] [1]\n- a\n\n"
+			+ "+ [*] # [*] [*]\n- b\n\n"
+			+ "+ [1] @arr [1] [1]\n- c\n\n"
+			+ "+ *\n- d\n";
+		match(code, "1 1", "[22] 1 [22] [1]");
+		match(code, "22 1 22 1", "[22] 1 [22] [1]");
+		match(code, "22 1", "[*] # [*] [*], star1=22");
+		match(code, "a 5 b", "[*] # [*] [*], star1=5");
+		match(code, "a", "*, star1=a");
+	}
+
+	@Test
+	public void testSkippedOptionalBeforeStar() {
+		// The regexp of a skipped optional leaves the space before the next
+		// word, so a star right after it starts with that space.
+		String code = "+ what is your (favorite|most loved) [big] *\n- a\n\n"
+			+ "+ tell me [more] [about] *\n- b\n\n"
+			+ "+ * [and] *\n- c\n";
+		match(code, "what is your favorite dog", "what is your (favorite|most loved) [big] *, star1=favorite, star2= dog");
+		match(code, "tell me cats", "tell me [more] [about] *, star1= cats");
+		match(code, "tell me about cats", "tell me [more] [about] *, star1=cats");
+		match(code, "tell me more cats", "tell me [more] [about] *, star1=cats");
+		match(code, "bread butter", "* [and] *, star1=bread, star2= butter");
+		match(code, "bread and butter", "* [and] *, star1=bread, star2=butter");
+
+		// With no word before it, there's no space to take.
+		code = "+ [please] *\n- a\n";
+		match(code, "help me", "[please] *, star1=help me");
+		match(code, "please help me", "[please] *, star1=help me");
+
+		// An optional with a * choice can match just the space instead.
+		code = "+ i like [*] *\n- a\n";
+		match(code, "i like cats", "i like [*] *, star1=cats");
+		match(code, "i like big cats", "i like [*] *, star1=cats");
+		code = "+ tell me [more] [*] *\n- a\n";
+		match(code, "tell me cats", "tell me [more] [*] *, star1=cats");
+		code = "+ _ [*] *\n- a\n";
+		match(code, "a cats", "_ [*] *, star1=a, star2=cats");
+	}
+
+	@Test
+	public void testNonCanonicalFallback() {
+		String code = "+ my name is *\n- a\n\n+ *\n- b\n";
+		match(code, "my  name is bob", "*, star1=my  name is bob");
+		match(code, "my name is bob!", "my name is *, star1=bob!");
+		match(code, " my name is bob", "*, star1= my name is bob");
+	}
+
+	@Test
+	public void testMessageTokens() {
+		MessageTokens tokens = new MessageTokens("my name is bob");
+		assertEquals(4, tokens.count());
+		assertEquals("bob", tokens.words()[3]);
+		assertEquals("is bob", tokens.text(2, 4));
+		assertEquals(8, tokens.start(2));
+
+		// Only canonical messages are split.
+		assertEquals(-1, new MessageTokens("my  name").count());
+		assertEquals(-1, new MessageTokens("what's up").count());
+		assertEquals(-1, new MessageTokens("").count());
+	}
+
+	@Test
+	public void testWordCountBounds() {
+		java.util.HashMap<String, Vector<String>> arrays = new java.util.HashMap<String, Vector<String>>();
+		arrays.put("colors", new Vector<String>(Arrays.asList("red", "light blue")));
+		assertBounds("i [really] like it", arrays, 3, 4);
+		assertBounds("i like [*]", arrays, 2, Integer.MAX_VALUE);
+		assertBounds("i like @colors", arrays, 3, 4);
+		assertBounds("i like (@colors)", arrays, 3, 4);
+		assertBounds("(hi|hello there) bot", arrays, 2, 3);
+		assertBounds("[well] (hi|hello there) [*]", arrays, 1, Integer.MAX_VALUE);
+		assertBounds("what is # plus #", arrays, 5, 5);
+
+		// Messages right at the bounds still match, and ones a word past
+		// them fall through to later triggers.
+		String code = "! array colors = red|light blue\n\n"
+			+ "+ i [really] like it\n- a\n\n"
+			+ "+ i like @colors\n- b\n\n"
+			+ "+ (hi|hello there) bot\n- c\n\n"
+			+ "+ i like [*]\n- d\n\n"
+			+ "+ *\n- e\n";
+		match(code, "i like it", "i [really] like it");
+		match(code, "i really like it", "i [really] like it");
+		match(code, "i really like it a", "*, star1=i really like it a");
+		match(code, "i like red", "i like @colors");
+		match(code, "i like light blue", "i like @colors");
+		match(code, "i like light blue sky", "i like [*]");
+		match(code, "i like", "i like [*]");
+		match(code, "hi bot", "(hi|hello there) bot, star1=hi");
+		match(code, "hello there bot", "(hi|hello there) bot, star1=hello there");
+		match(code, "bot", "*, star1=bot");
+		match(code, "well hello there bot", "*, star1=well hello there bot");
+	}
+
+	private void assertBounds(String trigger, java.util.HashMap<String, Vector<String>> arrays, int min, int max) {
+		WordPattern pattern = WordPattern.parse(trigger, arrays, new Vocabulary());
+		assertEquals(trigger + " min", min, pattern.minWords());
+		assertEquals(trigger + " max", max, pattern.maxWords());
+	}
+
+	@Test
+	public void testVocabulary() {
+		Vocabulary vocabulary = new Vocabulary();
+		WordPattern pattern = WordPattern.parse("my name is *", new java.util.HashMap<String, Vector<String>>(), vocabulary);
+		assertEquals(3, vocabulary.size());
+		assertEquals(vocabulary.id("name"), pattern.items()[1].id);
+
+		// Words the triggers don't have get no ID.
+		int[] ids = new MessageTokens("my name is bob").ids(vocabulary);
+		assertEquals(vocabulary.id("is"), ids[2]);
+		assertEquals(Vocabulary.UNKNOWN, ids[3]);
+	}
+
+	@Test
+	public void testLiteralFilter() {
+		// Triggers with no plain words outside of groups and tags need nothing.
+		assertEquals(0, LiteralFilter.required("*").size());
+		assertEquals(0, LiteralFilter.required("[*] (hi|hello) [*]").size());
+		assertEquals(0, LiteralFilter.required("weather*").size());
+		assertEquals(0, LiteralFilter.required("<bot name> *").size());
+		assertEquals("[what, is]", LiteralFilter.required("what is *").toString());
+		assertEquals("[me]", LiteralFilter.required("[please] (tell|show) me *").toString());
+
+		// A needed word inside a longer word still counts as found, so the
+		// filter can only let too much through, never too little.
+		LiteralFilter filter = new LiteralFilter(new Vector<String>(Arrays.asList("weather", "in")));
+		BitSet found = filter.scan("the weatherman");
+		assertTrue(found.get(filter.id("weather")));
+		assertFalse(found.get(filter.id("in")));
+
+		String code = "+ what is the weather in *\n- a\n\n"
+			+ "+ weather*\n- b\n\n"
+			+ "+ [*] (hi|hello) [*]\n- c\n\n"
+			+ "+ *\n- d\n";
+		match(code, "what is the weather in paris", "what is the weather in *, star1=paris");
+		match(code, "weatherman says so", "weather*, star1=man says so");
+		match(code, "what is the weatherman in paris", "*, star1=what is the weatherman in paris");
+		match(code, "well hello there", "[*] (hi|hello) [*], star1=hello");
+		match(code, "hi", "[*] (hi|hello) [*], star1=hi");
+	}
+
+	/**
+	 * Load some code with a matching strategy.
+	 */
+	private RiveScriptEngine stream(String matcher, String code) {
+		RiveScriptEngine engine = new RiveScriptEngine();
+		engine.setMatcher(matcher);
+		engine.stream(code);
+		engine.sortReplies();
+		return engine;
+	}
+
+	/**
+	 * Check that the regexps and every strategy match a message in the
+	 * random topic to the expected trigger and stars.
+	 */
+	private void match(String code, String message, String expect) {
+		assertEquals("regex matcher, message \"" + message + "\"", expect,
+			describe(stream(RiveScriptEngine.MATCHER_REGEX, code), message));
+		for (String strategy : STRATEGIES) {
+			assertEquals(strategy + " matcher, message \"" + message + "\"", expect,
+				describe(stream(strategy, code), message));
+		}
+	}
+
+	private String describe(RiveScriptEngine engine, String message) {
+		TriggerMatch match = engine.getTopics().topic("random").match(message);
+		if (match == null) {
+			return "no match";
+		}
+		StringBuilder text = new StringBuilder(engine.getTopics().topic("random").listCompiled()[ match.index() ].pattern());
+		for (int i = 1; i <= match.starCount(); i++) {
+			text.append(", star" + i + "=" + match.star(i));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Make up a message that a word pattern should match.
+	 */
+	private String message(WordPattern pattern, Vector<String> vocabulary) {
+		StringBuilder message = new StringBuilder();
+		for (WordPattern.Item item : pattern.items()) {
+			String part = null;
+			switch (item.type) {
+				case WordPattern.WORD:
+					part = item.word;
+					break;
+				case WordPattern.STAR:
+					part = words(vocabulary, 1 + random.nextInt(3));
+					break;
+				case WordPattern.POUND:
+				case WordPattern.UNDER:
+					part = random.nextBoolean() ? String.valueOf(random.nextInt(100)) : words(vocabulary, 1);
+					break;
+				case WordPattern.ALTERNATIVES:
+					part = join(item.choices[ random.nextInt(item.choices.length) ]);
+					break;
+				case WordPattern.OPTIONAL:
+					if (random.nextBoolean()) {
+						String[] choice = item.choices[ random.nextInt(item.choices.length) ];
+						part = (choice == WordPattern.ANY) ? words(vocabulary, 1) : join(choice);
+					}
+					break;
+			}
+			if (part != null) {
+				message.append(message.length() > 0 ? " " : "").append(part);
+			}
+		}
+		return message.toString();
+	}
+
+	private String words(Vector<String> vocabulary, int count) {
+		String[] words = new String[count];
+		for (int i = 0; i < count; i++) {
+			words[i] = vocabulary.get(random.nextInt(vocabulary.size()));
+		}
+		return join(words);
+	}
+
+	private String join(String[] words) {
+		StringBuilder text = new StringBuilder();
+		for (String word : words) {
+			text.append(text.length() > 0 ? " " : "").append(word);
+		}
+		return text.toString();
+	}
+
+	private String describe(TriggerMatch match) {
+		if (match == null) {
+			return "no match";
+		}
+		StringBuilder text = new StringBuilder("trigger " + match.index());
+		for (int i = 1; i <= match.starCount(); i++) {
+			text.append(", star" + i + "=" + match.star(i));
+		}
+		return text.toString();
+	}
+}
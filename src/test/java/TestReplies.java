@@ -2,8 +2,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
+import com.rivescript.SimpleClient;
+
 public class TestReplies extends TestBase {
 	public String replies() {
 		return "replies";
@@ -19,6 +24,45 @@ public class TestReplies extends TestBase {
 		this.reply("hello", "I don't know.");
 	}
 
+	@Test
+	public void testPreviousOrder() {
+		this.setUp("previous-order.rive");
+
+		// The same trigger under several %Previous's: the one that sorts
+		// first wins when more than one matches the bot's last reply.
+		this.reply("yes", "Yes what?");
+		this.reply("ask me something", "Do you like cheese?");
+		this.reply("yes", "Me too, cheese is great.");
+		this.reply("ask me again", "Do you like green cheese?");
+		this.reply("yes", "Green cheese it is.");
+		this.reply("ask me anything", "Do you like music?");
+		this.reply("yes", "You like music.");
+
+		// Under one %Previous, the triggers are sorted too.
+		this.reply("ask me anything", "Do you like music?");
+		this.reply("maybe", "Yes or no?");
+	}
+
+	@Test
+	public void testPreviousNormalized() {
+		this.setUp("previous.rive");
+
+		// The normalized reply is stored next to the raw one and %Previous
+		// matches against it.
+		SimpleClient client = new SimpleClient("localuser");
+		String reply = this.rs.getEngine().reply(client, "Knock knock");
+		assertEquals("Who's there?", reply);
+		client.addReply(reply, this.rs.getEngine().formatReply(reply));
+		assertEquals("who is there", client.getNormalizedReply(1));
+		assertEquals("Canoe who?", this.rs.getEngine().reply(client, "Canoe"));
+
+		// Without one, the raw reply is formatted as before.
+		client = new SimpleClient("localuser");
+		client.addReply("Who's there?");
+		assertEquals(null, client.getNormalizedReply(1));
+		assertEquals("Canoe who?", this.rs.getEngine().reply(client, "Canoe"));
+	}
+
 	@Test
 	public void testRandom() {
 		this.setUp("random.rive");
@@ -43,6 +87,24 @@ public class TestReplies extends TestBase {
 			+ "and that was the end of him.");
 	}
 
+	@Test
+	public void testContinuationsFromReader() throws java.io.IOException {
+		this.rs = new com.rivescript.RiveScriptClient();
+		java.io.Reader reader = new java.io.FileReader("src/test/resources/fixtures/replies/continuations-edge.rive");
+		try {
+			assertTrue(this.rs.getEngine().stream(reader));
+		} finally {
+			reader.close();
+		}
+		this.rs.getEngine().sortReplies();
+
+		// Blank lines don't end a run of ^Continues, and a %Previous can
+		// follow them.
+		this.reply("Knock knock", "Who's there?");
+		this.reply("Canoe who", "Gap in the middle.");
+		this.reply("I like green", "Me too.");
+	}
+
 	@Test
 	public void testRedirects() {
 		this.setUp("redirects.rive");
@@ -50,6 +112,56 @@ public class TestReplies extends TestBase {
 		this.reply("hello", "Hi there!");
 		this.reply("hey", "Hi there!");
 		this.reply("hi there", "Hi there!");
+
+		// {@...} tags inside other text, tags and conditions.
+		this.reply("I am bob", "Nice to meet you, Bob. HI THERE!");
+		this.reply("Am I who?", "You are Bob.");
+		this.reply("I am alice", "Nice to meet you, Alice. HI THERE!");
+		this.reply("Am I who?", "You are Alice.");
+		this.reply("Ask who", "That's me.");
+	}
+
+	@Test
+	public void testStaticRedirects() {
+		this.setUp("static-redirects.rive");
+
+		this.reply("Go", "You are in the main menu.");
+		this.reply("Menu", "You are in the main menu.");
+
+		// A dynamic trigger sorted ahead of the match depends on the user.
+		this.reply("Who am I?", "You asked about bob.");
+		this.uservar("name", "bob");
+		this.reply("Who am I?", "You asked about yourself.");
+	}
+
+	@Test
+	public void testRedirectLoops() {
+		this.setUp("redirect-loops.rive");
+
+		String[] loops = this.rs.getEngine().listRedirectLoops();
+		assertEquals(3, loops.length);
+		for (String loop : loops) {
+			if (loop.indexOf("\"again\"") > -1) {
+				assertTrue(loop.endsWith("\"again\" (src/test/resources/fixtures/replies/redirect-loops.rive line 7) -> \"again\" (src/test/resources/fixtures/replies/redirect-loops.rive line 7)"));
+			}
+			else if (loop.indexOf("\"tick\"") > -1) {
+				assertTrue(loop.indexOf("\"tock\" (src/test/resources/fixtures/replies/redirect-loops.rive line 16)") > -1);
+			}
+			else {
+				assertTrue(loop.indexOf("\"ping\" (src/test/resources/fixtures/replies/redirect-loops.rive line 1)") > -1);
+				assertTrue(loop.indexOf("\"pong\" (src/test/resources/fixtures/replies/redirect-loops.rive line 4)") > -1);
+			}
+		}
+
+		this.reply("Start", "ERR: Deep Recursion Detected!");
+		this.reply("Again", "ERR: Deep Recursion Detected!");
+
+		// A {@...} tag in the middle of a reply is followed on the same frame
+		// stack, and stops at the same depth limit.
+		String reply = this.rs.reply("localuser", "Tick");
+		assertTrue(reply.startsWith("Tick Tock Tick "));
+		assertTrue(reply.endsWith(" ERR: Deep Recursion Detected!"));
+		assertEquals(51, reply.split(" ").length - 4); // One word per step, 0 to 50
 	}
 
 	@Test
@@ -81,6 +193,36 @@ public class TestReplies extends TestBase {
 		this.reply("Am I your master?", "Yes.");
 	}
 
+	@Test
+	public void testConditionOperators() {
+		this.setUp("condition-operators.rive");
+		this.reply("Compare a and a", "Same text.");
+		this.reply("Compare 07 and 7", "Same number.");
+		this.reply("Compare 3 and 7", "Smaller.");
+		this.reply("Compare 9 and 7", "Different.");
+		this.reply("Compare b and a", "Different.");
+
+		// Conditions that don't parse are never true.
+		this.reply("Broken", "Fine.");
+	}
+
+	@Test
+	public void testWeightedReplies() {
+		this.setUp("weighted.rive");
+
+		// A weight of 0 counts as 1, so "Common." is 500 times as likely as
+		// each of the others.
+		int common = 0;
+		for (int i = 0; i < 500; i++) {
+			String reply = this.rs.reply("localuser", "Pick one");
+			assertTrue(reply.equals("Common.") || reply.equals("Rare.") || reply.equals("None."));
+			if (reply.equals("Common.")) {
+				common++;
+			}
+		}
+		assertTrue(common > 450);
+	}
+
 	@Test
 	public void testSetUservars() {
 		this.setUp("set-uservars.rive");
@@ -97,4 +239,51 @@ public class TestReplies extends TestBase {
 
 		this.reply("google java", "<a href=\"https://www.google.com/search?q=java\">Results are here</a>");
 	}
+
+	@Test
+	public void testNestedTags() {
+		this.setUp("nested-tags.rive");
+
+		this.reply("test escapes", "One Two\\Three#");
+		this.reply("my name is bob", "Nice to meet you, Bob.");
+		this.reply("shout my name", "BOB!");
+		this.reply("count up", "Count is 2.");
+	}
+
+	@Test
+	public void testStringFormats() {
+		this.setUp("string-formats.rive");
+		this.reply("My name is j r r tolkien", "Hello, J R R Tolkien.");
+		this.reply("Say i", "I.");
+		this.reply("Shout hello world", "HELLO WORLD!");
+
+		// Letters outside of ASCII.
+		this.rs.getEngine().stream("+ greet them\n- {formal}\u00e9lise o'neil and \u01c6ema{/formal}\n"
+			+ "+ shout street\n- {uppercase}stra\u00dfe{/uppercase}!");
+		this.rs.getEngine().sortReplies();
+		this.reply("Greet them", "\u00c9lise O'neil And \u01c5ema");
+		this.reply("Shout street", "STRASSE!");
+	}
+
+	@Test
+	public void testReplyCache() {
+		this.setUp("string-formats.rive");
+		this.rs.getEngine().setReplyCache(100);
+
+		this.reply("My name is bob", "Hello, Bob.");
+		this.reply("My name is bob", "Hello, Bob.");
+		this.reply("My name is alice", "Hello, Alice.");
+		assertEquals(1, this.rs.getEngine().getReplyCache().hits());
+		assertEquals(2, this.rs.getEngine().getReplyCache().misses());
+
+		// Replies that read user data aren't cached.
+		this.uservar("name", "bob");
+		this.reply("Who am I?", "You are Bob.");
+		this.uservar("name", "alice");
+		this.reply("Who am I?", "You are Alice.");
+		assertEquals(2, this.rs.getEngine().getReplyCache().size());
+
+		this.rs.getEngine().sortReplies();
+		assertEquals(0, this.rs.getEngine().getReplyCache().size());
+	}
 }
@@ -1,5 +1,16 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.junit.Test;
 
+import com.rivescript.Client;
+import com.rivescript.ObjectHandler;
+import com.rivescript.ObjectMacro;
+import com.rivescript.RiveScriptClient;
+
 public class TestRiveScript extends TestBase {
 	public String replies() {
 		return "rivescript";
@@ -31,4 +42,43 @@ public class TestRiveScript extends TestBase {
 		this.reply("get global test", "hello test!");
 		this.reply("get bad global test", "Wildcard \"undefined\"!");
 	}
+
+	@Test
+	public void testLoadDirectoryInParallel() {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			this.rs = new RiveScriptClient();
+			this.rs.getEngine().setLoadExecutor(executor);
+			this.rs.getEngine().setHandler("test", new ObjectHandler() {
+				private String[] greeting = {};
+
+				public boolean onLoad (String name, String[] code) {
+					greeting = code;
+					return true;
+				}
+
+				public String onCall (String name, Client client, String[] args) {
+					return greeting[0].trim();
+				}
+
+				public void setClass (String name, ObjectMacro impl) {
+				}
+			});
+			assertTrue(this.rs.getEngine().loadDirectory("src/test/resources/fixtures/" + this.replies() + "/directory"));
+			this.rs.getEngine().sortReplies();
+		} finally {
+			executor.shutdown();
+		}
+
+		// The files are added in order of their names, whichever was parsed
+		// first and whatever their extension.
+		String[] expected = { "Hello from the first file.", "Hello from between them.", "Hello from the second file." };
+		assertArrayEquals(expected, this.rs.getEngine().getTopics().topic("random").trigger("hello bot").listReplies());
+		this.reply("what is your name", "I am Second.");
+		this.reply("i like green", "I like that color too.");
+		this.reply("call greet", "Greetings from an object.");
+
+		this.uservar("topic", "other");
+		this.reply("hello bot", "Other.");
+	}
 }
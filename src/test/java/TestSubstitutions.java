@@ -32,4 +32,16 @@ public class TestSubstitutions extends TestBase {
 		this.reply("say I am cool", "you are cool");
 		this.reply("say You are dumb", "I am dumb");
 	}
+
+	@Test
+	public void testSubstitutionsApplyOnce() {
+		this.setUp("subs-edge.rive");
+
+		// A replacement is never substituted again.
+		this.reply("say he's nice", "he is nice");
+
+		// Neighbouring words are each substituted.
+		this.reply("say u u ur", "you you your");
+		this.reply("say you, u? ur!", "you you your");
+	}
 }
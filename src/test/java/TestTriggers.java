@@ -1,5 +1,9 @@
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
+import com.rivescript.MessageNormalizer;
+
 public class TestTriggers extends TestBase {
 	public String replies() {
 		return "triggers";
@@ -13,6 +17,15 @@ public class TestTriggers extends TestBase {
 		this.reply("What are you?", "I am a RiveScript bot.");
 	}
 
+	@Test
+	public void testAtomicPriority() {
+		this.setUp("atomic-priority.rive");
+
+		this.reply("Hello bot", "Weighted.");
+		this.reply("Good morning", "Good morning!");
+		this.reply("Good night", "Good night.");
+	}
+
 	@Test
 	public void testWildcardTriggers() {
 		this.setUp("wildcard.rive");
@@ -24,6 +37,50 @@ public class TestTriggers extends TestBase {
 		this.reply("i am twenty five years old", "Say that with fewer words.");
 	}
 
+	@Test
+	public void testWildcardTriggersDfa() {
+		this.setUp("wildcard.rive");
+		this.rs.getEngine().setMatcher("dfa");
+		this.rs.getEngine().sortReplies();
+
+		this.reply("my name is Bob", "Nice to meet you, bob.");
+		this.reply("bob told me to say hi", "Why did bob tell you to say hi?");
+		this.reply("i am 5 years old", "A lot of people are 5.");
+		this.reply("i am five years old", "Say that with numbers.");
+		this.reply("i am twenty five years old", "Say that with fewer words.");
+	}
+
+	@Test
+	public void testDynamicTriggers() {
+		this.setUp("dynamic.rive");
+
+		this.reply("My name is Aiden", "Same as mine!");
+		this.reply("Aiden how are you", "You said how are you to me.");
+		this.reply("Hello Dr. Who", "Hello, Doctor.");
+		this.reply("undefined here", "Nothing here.");
+		this.reply("I am 20 years old", "OK, you are 20.");
+		this.reply("I am 20 years old", "I already knew that.");
+		this.reply("I am 21 years old", "OK, you are 21.");
+	}
+
+	@Test
+	public void testMatchCache() {
+		this.setUp("dynamic.rive");
+		this.rs.getEngine().setMatchCache(100);
+
+		this.reply("I am 20 years old", "OK, you are 20.");
+		this.reply("I am 20 years old", "I already knew that.");
+		this.reply("I am 20 years old", "I already knew that.");
+		this.reply("Aiden how are you", "You said how are you to me.");
+		this.reply("Aiden how are you", "You said how are you to me.");
+
+		assertEquals(2, this.rs.getEngine().getMatchCache().hits());
+		assertEquals(3, this.rs.getEngine().getMatchCache().misses());
+
+		this.rs.getEngine().sortReplies();
+		assertEquals(0, this.rs.getEngine().getMatchCache().size());
+	}
+
 	@Test
 	public void testAlternativesAndOptionals() {
 		this.setUp("alternatives.rive");
@@ -79,4 +136,35 @@ public class TestTriggers extends TestBase {
 		this.reply("Can you run a Google search for Java?", "Sure!");
 		this.reply("Can you run a Google search for Java or something?", "Or something. Sure!");
 	}
+
+	@Test
+	public void testMessageWhitespace() {
+		this.setUp("wildcard.rive");
+
+		this.reply("  my   name is\tBob! ", "Nice to meet you, bob.");
+		this.reply("i am 5 -- years old", "A lot of people are 5.");
+	}
+
+	@Test
+	public void testUnicodeNormalizer() {
+		this.setUp("atomic.rive");
+		this.rs.getEngine().setNormalizer(new MessageNormalizer(MessageNormalizer.UNICODE));
+		this.rs.getEngine().stream(new String[] {
+			"+ je voudrais un caf\u00e9",
+			"- Voil\u00e0.",
+			"",
+			"+ my name is *",
+			"- Hello, <star>.",
+		});
+		this.rs.getEngine().sortReplies();
+
+		this.reply("Hello bot", "Hello human.");
+		this.reply("Je voudrais un CAF\u00c9!", "Voil\u00e0.");
+		this.reply("Je voudrais un cafe\u0301", "Voil\u00e0.");
+		this.reply("My name is \uff2a\uff4f\u00eb", "Hello, jo\u00eb.");
+
+		// ASCII mode drops the accents.
+		MessageNormalizer ascii = new MessageNormalizer();
+		assertEquals("je voudrais un caf", ascii.normalize("Je voudrais un caf\u00e9!"));
+	}
 }
@@ -0,0 +1,2 @@
++ hello bot
+- Hello from between them.